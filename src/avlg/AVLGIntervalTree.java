@@ -0,0 +1,171 @@
+package avlg;
+
+import avlg.exceptions.InvalidBalanceException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <p>{@link AVLGIntervalTree} is an {@link AVLGTree} of {@link Interval}s, ordered by start, in which every node
+ * also keeps the largest end point found in its subtree. That maximum is kept up to date through insertions,
+ * deletions and every rotation, with the same G-parameterized balancing as any other {@link AVLGTree}, and it
+ * lets queries skip every subtree that ends before the range asked about.</p>
+ *
+ * <p>Stabbing queries ({@link #stab(Comparable, Consumer)}) find the intervals containing a point, and overlap
+ * queries ({@link #overlapping(Comparable, Comparable, Consumer)}) the intervals sharing a point with a range.
+ * Both skip every subtree whose intervals all end before the range, and stop at the first interval starting
+ * after it. Any other subtree that starts no later than the range holds a result, namely its interval with
+ * the largest end, so apart from the O(log n) nodes around the end of the range, only nodes on the way down
+ * to a result are visited. A query reporting k intervals therefore costs O(log n + k) when its results are
+ * close together in start order, and at most O(log n + k log(n / k)), the size of k paths down a balanced
+ * tree, when they are spread out. Guaranteeing O(log n + k) for every query would take a different layout,
+ * such as a centered interval tree, rather than a search tree ordered by start. The variants taking a
+ * {@link Consumer} stream their results without allocating anything per query.</p>
+ *
+ * <p>The tree is a multiset: an interval inserted twice is reported twice.</p>
+ *
+ * @param <P> The type of the end points.
+ * @see Interval
+ */
+public class AVLGIntervalTree<P extends Comparable<P>> extends AVLGTree<Interval<P>> {
+
+	/* Node:
+	 * A tree node with the largest end point of its subtree
+	 */
+	private final class Node extends TreeNode {
+		private P maxEnd;
+	}
+
+	/**
+	 * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+	 * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+	 */
+	public AVLGIntervalTree(int maxImbalance) throws InvalidBalanceException {
+		super(maxImbalance, true, true);
+	}
+
+	@Override
+	TreeNode newNode() {
+		return new Node();
+	}
+
+	/* node(TreeNode node):
+	 * Every node of this tree is a Node, made by newNode()
+	 */
+	private Node node(TreeNode node) {
+		return (Node) node;
+	}
+
+	/* maxEnd(TreeNode node):
+	 * Returns the largest end point of node's subtree
+	 *
+	 * Other notes:
+	 * A leaf is linked in before augment(..) ever sees it, so its maximum is its own end until then.
+	 */
+	private P maxEnd(TreeNode node) {
+		P max = node(node).maxEnd;
+		return max == null ? node.data.getEnd() : max;
+	}
+
+	@Override
+	void resetNode(TreeNode node) {
+		node(node).maxEnd = null;
+	}
+
+	@Override
+	void augment(TreeNode node) {
+		P max = node.data.getEnd();
+		if (node.lChild != null && maxEnd(node.lChild).compareTo(max) > 0)
+			max = maxEnd(node.lChild);
+		if (node.rChild != null && maxEnd(node.rChild).compareTo(max) > 0)
+			max = maxEnd(node.rChild);
+		node(node).maxEnd = max;
+	}
+
+	/**
+	 * Inserts the interval [start, end].
+	 * @param start The smallest point of the interval.
+	 * @param end The largest point of the interval.
+	 * @throws NullPointerException if start or end is null.
+	 * @throws IllegalArgumentException if end comes before start.
+	 */
+	public void insert(P start, P end) {
+		insert(new Interval<>(start, end));
+	}
+
+	/* overlapHelper(TreeNode node, P lo, P hi, Consumer<? super Interval<P>> action):
+	 * Reports, in start order, the intervals of node's subtree that overlap [lo, hi]
+	 *
+	 * Parameters:
+	 * node - root of the subtree
+	 * lo, hi - range queried
+	 * action - what to do with each interval
+	 *
+	 * Other notes:
+	 * Subtrees that end before lo are skipped whole. Once an interval starts after hi, so does
+	 * everything to its right, and the walk stops there. A subtree that gets past the first check and
+	 * starts no later than hi holds an overlap, its interval ending at maxEnd, so every node visited is
+	 * on the path to a result, on the search path for hi, or a child of one of those that is cut off.
+	 * Returns the number of intervals reported.
+	 */
+	private int overlapHelper(TreeNode node, P lo, P hi, Consumer<? super Interval<P>> action) {
+		if (node == null || maxEnd(node).compareTo(lo) < 0)
+			return 0;
+		int found = overlapHelper(node.lChild, lo, hi, action);
+		if (node.data.getStart().compareTo(hi) > 0)
+			return found;
+		if (node.data.getEnd().compareTo(lo) >= 0) {
+			for (int i = 0; i < node.count; i++)
+				action.accept(node.data);
+			found += node.count;
+		}
+		return found + overlapHelper(node.rChild, lo, hi, action);
+	}
+
+	/**
+	 * <p>Visits, in start order, every interval that shares at least one point with [lo, hi].</p>
+	 * @param lo The smallest point of the range.
+	 * @param hi The largest point of the range.
+	 * @param action What to do with each interval.
+	 * @return The number of intervals visited.
+	 */
+	public int overlapping(P lo, P hi, Consumer<? super Interval<P>> action) {
+		if (hi.compareTo(lo) < 0)
+			return 0;
+		return overlapHelper(rootNode(), lo, hi, action);
+	}
+
+	/**
+	 * @param lo The smallest point of the range.
+	 * @param hi The largest point of the range.
+	 * @return Every interval that shares at least one point with [lo, hi], in start order.
+	 * @see #overlapping(Comparable, Comparable, Consumer)
+	 */
+	public List<Interval<P>> overlapping(P lo, P hi) {
+		List<Interval<P>> found = new ArrayList<>();
+		overlapping(lo, hi, found::add);
+		return found;
+	}
+
+	/**
+	 * <p>Visits, in start order, every interval that contains point.</p>
+	 * @param point The point.
+	 * @param action What to do with each interval.
+	 * @return The number of intervals visited.
+	 */
+	public int stab(P point, Consumer<? super Interval<P>> action) {
+		return overlapHelper(rootNode(), point, point, action);
+	}
+
+	/**
+	 * @param point The point.
+	 * @return Every interval that contains point, in start order.
+	 * @see #stab(Comparable, Consumer)
+	 */
+	public List<Interval<P>> stab(P point) {
+		List<Interval<P>> found = new ArrayList<>();
+		stab(point, found::add);
+		return found;
+	}
+}
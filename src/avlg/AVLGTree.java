@@ -3,6 +3,22 @@ package avlg;
 import avlg.exceptions.UnimplementedMethodException;
 import avlg.exceptions.EmptyTreeException;
 import avlg.exceptions.InvalidBalanceException;
+import avlg.exceptions.TreeFormatException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
 
 /** <p>{@link AVLGTree}  is a class representing an <a href="https://en.wikipedia.org/wiki/AVL_tree">AVL Tree</a> with
  * a relaxed balance condition. Its constructor receives a strictly  positive parameter which controls the <b>maximum</b>
@@ -26,26 +42,142 @@ import avlg.exceptions.InvalidBalanceException;
  * @see InvalidBalanceException
  * @see StudentTests
  */
-public class AVLGTree<T extends Comparable<T>> {
+public class AVLGTree<T extends Comparable<T>> implements Iterable<T> {
 
     /* ********************************************************* *
      * Write any private data elements or private methods here...*
      * ********************************************************* */
-	private class TreeNode {
-		private T data;
-		private TreeNode lChild;
-		private TreeNode rChild;
+	/* TreeNode:
+	 * Package-private, with package-private fields, so that augmented trees can extend it with
+	 * whatever they maintain per subtree; see augment(..).
+	 */
+	class TreeNode {
+		T data;
+		TreeNode lChild;
+		TreeNode rChild;
+		TreeNode parent; // null at the root; relinked along with the children
+		int height; // cached; kept up to date by updateHeight(..); REMOVED once unlinked
+		int count; // occurrences of data; always 1 unless the tree is a multiset
 		
 		public TreeNode() {
 			data = null;
 			lChild = null;
 			rChild = null;
+			parent = null;
+			height = 0;
+			count = 1;
 		}
 	}
 	
 	private TreeNode root;
 	private int maxImbalance;
-	private int size;
+	private int size; // distinct keys, i.e. nodes
+	private long total; // keys counted with their multiplicities
+	private boolean multiset;
+	private final boolean augmented; // whether augment(..) is overridden and must reach the root
+	private int epoch; // bumped by clear(), which drops every node at once without unlinking them
+	private CountingBloomFilter filter; // null unless enableSearchFilter(..) was called
+	private double filterRate;
+	private long filterHits; // lookups answered by the filter alone
+	private long filterFalsePositives; // lookups the filter let through for keys that were not there
+	private TreeNode freeList; // pooled nodes, linked through lChild
+	private int freeCount;
+	private int poolCapacity; // 0 unless enableNodePool(..) was called
+	private long poolHits;
+	private long poolMisses;
+	private long rotations; // single rotations, so a double rotation counts twice
+	private AVLGTreeRecorder<T> recorder; // null unless setRecorder(..) was called
+	
+	private static final int REMOVED = -2; // height of a node that is no longer in the tree
+	
+	/* On-disk format written by save(..):
+	 * magic, version, codec id, flags, maxImbalance (varint), size (varint), then size keys in order.
+	 * Multisets set FLAG_MULTISET and follow every key with its count (varint).
+	 */
+	private static final int FORMAT_MAGIC = 0x41564C47; // "AVLG"
+	private static final int FORMAT_VERSION = 1;
+	private static final int FLAG_MULTISET = 1;
+	
+	/* SortedLoader:
+	 * Rebuilds a tree from keys streamed in ascending order, checking the order as it goes
+	 * 
+	 * Other notes:
+	 * Keys come either from a saved tree (in, codec) or from an iterator (keys). Saved multisets also
+	 * carry a count after each key, which is summed up in occurrences.
+	 */
+	private class SortedLoader {
+		private final ChannelInput in;
+		private final KeyCodec<T> codec;
+		private final Iterator<? extends T> keys;
+		private final boolean withCounts;
+		private T previous;
+		private long occurrences;
+		
+		private SortedLoader(ChannelInput in, KeyCodec<T> codec, boolean withCounts) {
+			this.in = in;
+			this.codec = codec;
+			this.keys = null;
+			this.withCounts = withCounts;
+			this.previous = null;
+		}
+		
+		private SortedLoader(Iterator<? extends T> keys) {
+			this.in = null;
+			this.codec = null;
+			this.keys = keys;
+			this.withCounts = false;
+			this.previous = null;
+		}
+		
+		/* nextKey():
+		 * Returns the next key of the stream
+		 */
+		private T nextKey() throws IOException {
+			if (keys == null)
+				return codec.decode(previous, in);
+			if (!keys.hasNext())
+				throw new TreeFormatException("Fewer keys than expected.");
+			return keys.next();
+		}
+		
+		/* build(int n):
+		 * Builds a perfectly balanced subtree out of the next n keys of the stream
+		 * 
+		 * Parameters:
+		 * n - number of keys in the subtree
+		 * 
+		 * Other notes:
+		 * The left subtree is built first so that keys are consumed in order. Subtree sizes never differ
+		 * by more than one, so the result satisfies the AVL-G condition for every G.
+		 * Returns the root of the new subtree, or null if n is 0.
+		 */
+		private TreeNode build(int n) throws IOException {
+			if (n == 0)
+				return null;
+			int leftCount = (n - 1) / 2;
+			TreeNode node = makeNode();
+			node.lChild = build(leftCount);
+			if (node.lChild != null)
+				node.lChild.parent = node;
+			T key = nextKey();
+			if (key == null || (previous != null && key.compareTo(previous) <= 0))
+				throw new TreeFormatException("Keys are not in strictly ascending order.");
+			node.data = key;
+			previous = key;
+			if (withCounts) {
+				long count = in.readVarLong();
+				if (count < 1 || count > Integer.MAX_VALUE)
+					throw new TreeFormatException("Corrupt count for key " + key + ".");
+				node.count = (int) count;
+			}
+			occurrences += node.count;
+			node.rChild = build(n - 1 - leftCount);
+			if (node.rChild != null)
+				node.rChild.parent = node;
+			updateHeight(node);
+			return node;
+		}
+	}
 	
     /* ******************************************************** *
      * ************************ PRIVATE METHODS **************** *
@@ -58,22 +190,33 @@ public class AVLGTree<T extends Comparable<T>> {
      * rt - root node
      * 
      * Other notes:
+     * Reads the cached height, so this is O(1).
      * Returns an integer to represent height of tree
      */
     private int heightHelper(TreeNode rt) {
-		if (rt == null) {
+		if (rt == null)
 			return -1;
-		} else {
-			int lHeight = heightHelper(rt.lChild);
-			int rHeight = heightHelper(rt.rChild);
-			
-			if (rHeight > lHeight)
-				return rHeight + 1;
-			else
-				return lHeight + 1;
-		}		
+		return rt.height;
 	}
     
+    /* updateHeight(TreeNode rt):
+     * Recomputes the cached height of rt from its children
+     * 
+     * Parameters:
+     * rt - node whose children have just changed; not null
+     * 
+     * Other notes:
+     * Children's heights must already be up to date, so callers fix nodes bottom-up. Since every
+     * relinking ends up here, this is also where augmented trees refresh their per-node summaries.
+     * No return value.
+     */
+    private void updateHeight(TreeNode rt) {
+    	int lHeight = heightHelper(rt.lChild);
+    	int rHeight = heightHelper(rt.rChild);
+    	rt.height = (rHeight > lHeight ? rHeight : lHeight) + 1;
+    	augment(rt);
+    }
+    
     /* getCurrBalance(TreeNode node):
      * B(n) = h(LTree) - h(RTree)
      * 
@@ -96,33 +239,22 @@ public class AVLGTree<T extends Comparable<T>> {
      * Other notes:
      * After insertion of new element, must check the balance of root.
      * Left Rotation requires B(n) < -1 && B(r) < 0.
-     * No return value.
+     * Nodes are relinked rather than having their keys copied around, so cursors survive rotations.
+     * The new root takes over node's parent, but the parent's child link is left to the caller.
+     * Returns the right child, which is the new root of the subtree.
      */
-    private void rotateLeft(TreeNode node) {
-    	if (node.lChild != null) {
-			rotateLeft(node.lChild);
-		}
-    	if (!isLeaf(node)) {
-			TreeNode temp = node.rChild; 
-			if (node.lChild == null)
-				node.lChild = new TreeNode();
-			node.lChild.data = node.data;
-			if (node.rChild != null) {
-				node.data = node.rChild.data;
-				if (temp.lChild != null) {
-					if (node.lChild.rChild == null)
-						node.lChild.rChild = new TreeNode();
-					node.lChild.rChild = temp.lChild;
-				}
-				node.rChild = temp.rChild;
-			} 
-		} 
-		if (isLeaf(node)) {
-			if (node.lChild == null)
-				node.lChild = new TreeNode();
-			node.lChild.data = node.data;
-			return;
-		}   	
+    private TreeNode rotateLeft(TreeNode node) {
+    	rotations++;
+    	TreeNode newRoot = node.rChild;
+    	node.rChild = newRoot.lChild;
+    	if (node.rChild != null)
+    		node.rChild.parent = node;
+    	newRoot.lChild = node;
+    	newRoot.parent = node.parent;
+    	node.parent = newRoot;
+    	updateHeight(node);
+    	updateHeight(newRoot);
+    	return newRoot;
     }
     
     /*rotateRight(TreeNode right):
@@ -134,33 +266,22 @@ public class AVLGTree<T extends Comparable<T>> {
      * Other notes:
      * After insertion of new element, must check the balance of root
      * Right Rotation requires B(n) > 1 && B(r) > 0
-     * No return value.
+     * Nodes are relinked rather than having their keys copied around, so cursors survive rotations.
+     * The new root takes over node's parent, but the parent's child link is left to the caller.
+     * Returns the left child, which is the new root of the subtree.
      */
-    private void rotateRight(TreeNode node) {
-    	if (node.rChild != null) {
-    		rotateRight(node.rChild);
-    	}
-    	if (!isLeaf(node)) {
-    		TreeNode temp = node.lChild; 
-			if (node.rChild == null)
-				node.rChild = new TreeNode();
-			node.rChild.data = node.data;
-			if (node.lChild != null) {
-				node.data = node.lChild.data;
-				if (temp.rChild != null) {
-					if (node.rChild.lChild == null)
-						node.rChild.lChild = new TreeNode();
-					node.rChild.lChild = temp.rChild;
-				}
-				node.lChild = temp.lChild;
-			} 
-    	}
-    	if (isLeaf(node)) {
-			if (node.rChild == null)
-				node.rChild = new TreeNode();
-			node.rChild.data = node.data;
-			return;
-		} 
+    private TreeNode rotateRight(TreeNode node) {
+    	rotations++;
+    	TreeNode newRoot = node.lChild;
+    	node.lChild = newRoot.rChild;
+    	if (node.lChild != null)
+    		node.lChild.parent = node;
+    	newRoot.rChild = node;
+    	newRoot.parent = node.parent;
+    	node.parent = newRoot;
+    	updateHeight(node);
+    	updateHeight(newRoot);
+    	return newRoot;
     }
     
     /*rotateRL(TreeNode node):
@@ -170,13 +291,13 @@ public class AVLGTree<T extends Comparable<T>> {
      * node - current node for recursion
      * 
      * Other notes:
-     * Rotate right at root of left subtree, then rotate.
+     * Rotate right at root of right subtree, then rotate
      * left at main root.
-     * No return value.
+     * Returns the new root of the subtree.
      */
-    private void rotateRL(TreeNode node) {
-    	 rotateRight(node.rChild);
-    	 rotateLeft(node);
+    private TreeNode rotateRL(TreeNode node) {
+    	node.rChild = rotateRight(node.rChild);
+    	return rotateLeft(node);
     }
     
     /*rotateLR(TreeNode node):
@@ -186,27 +307,13 @@ public class AVLGTree<T extends Comparable<T>> {
      * node - current node for recursion
      * 
      * Other notes:
-     * Rotate left at root of right subtree, then rotate
+     * Rotate left at root of left subtree, then rotate
      * right at main root.
-     * No return value.
-     */
-    private void rotateLR(TreeNode node) {
-    	rotateLeft(node.lChild);
-    	rotateRight(node);
-    }
-    
-    /*isLeaf(TreeNode curr): 
-     * Checks if current node is a leaf
-     * 
-     * Parameters:
-     * curr - node input
-     * 
-     * Other notes:
-     * Will assume that curr is not null.
-     * Returns boolean value to represent whether curr is a leaf
+     * Returns the new root of the subtree.
      */
-    private boolean isLeaf(TreeNode curr) {
-    	return curr.lChild == null && curr.rChild == null;
+    private TreeNode rotateLR(TreeNode node) {
+    	node.lChild = rotateLeft(node.lChild);
+    	return rotateRight(node);
     }
     
     /* insertHelper(TreeNode rt, T keyInput):
@@ -218,25 +325,48 @@ public class AVLGTree<T extends Comparable<T>> {
      * 
      * Other notes:
      * Method makes use of an additional helper method called rotator(..)
+     * Keeps size and total up to date. In a multiset, a key that is already there only has its count
+     * raised, which leaves every height, and therefore every balance, unchanged.
      * Returns TreeNode to represent new node after insertion
      */
     private TreeNode insertHelper(TreeNode rt, T keyInput) {
     	if (rt == null) {
-    		rt = new TreeNode();
+    		keyAdded(keyInput);
+    		rt = makeNode();
     		rt.data = keyInput;
+    		size++;
+    		total++;
     		return rt;
     	}
-    	if (keyInput.compareTo(rt.data) < 0) {
+    	int cmp = keyInput.compareTo(rt.data);
+    	if (cmp < 0) {
     		rt.lChild = insertHelper(rt.lChild,keyInput);
-        	rotator(rt,maxImbalance);
-    	}
-    	if (keyInput.compareTo(rt.data) > 0) {
+    		rt.lChild.parent = rt;
+        	rt = rotator(rt,maxImbalance);
+    	} else if (cmp > 0) {
     		rt.rChild = insertHelper(rt.rChild,keyInput);
-        	rotator(rt,maxImbalance);
+    		rt.rChild.parent = rt;
+        	rt = rotator(rt,maxImbalance);
+    	} else if (multiset) {
+    		addOccurrence(rt);
     	}
     	 return rt;
     }
     
+    /* addOccurrence(TreeNode node):
+     * Counts the key of node once more, in a multiset
+     * 
+     * Other notes:
+     * Counts are ints, as in saved trees, so a count already at Integer.MAX_VALUE is refused rather than
+     * wrapped around. Nothing has been changed by then, so the tree stays as it was.
+     */
+    private void addOccurrence(TreeNode node) {
+    	if (node.count == Integer.MAX_VALUE)
+    		throw new IllegalStateException("Key " + node.data + " already occurs " + Integer.MAX_VALUE + " times.");
+    	node.count++;
+    	total++;
+    }
+    
     /* rotator(TreeNode rt): 
      * Helper method to check balance of current node and determine whether rotations are needed
      * 
@@ -244,97 +374,278 @@ public class AVLGTree<T extends Comparable<T>> {
      * rt - root goes here
      * 
      * Other notes:
-     * No return value.
+     * Called whenever one of rt's children has changed, so it also refreshes rt's cached height.
+     * Returns the root of the subtree after any rotation, which callers must link back in.
      */
-    private void rotator(TreeNode rt,int balance) {
+    private TreeNode rotator(TreeNode rt,int balance) {
+    	updateHeight(rt);
     	// Right side is heavier
     	if (getCurrBalance(rt) < -1*balance) {
-    		if (getCurrBalance(rt.rChild) <= 0 || getCurrBalance(rt.rChild) == 0)
-    			rotateLeft(rt);
-    		else if (getCurrBalance(rt.rChild) > 0) {
-    			rotateRL(rt);
-    		}
+    		if (getCurrBalance(rt.rChild) <= 0)
+    			return rotateLeft(rt);
+    		else
+    			return rotateRL(rt);
     	
     	// Left side is heavier
     	} else if (getCurrBalance(rt) > balance) {
-    		if (getCurrBalance(rt.lChild) >= 0 || getCurrBalance(rt.lChild) == 0)
-    			rotateRight(rt);
-    		else if (getCurrBalance(rt.lChild) < 0) {
-    			rotateLR(rt);
+    		if (getCurrBalance(rt.lChild) >= 0)
+    			return rotateRight(rt);
+    		else
+    			return rotateLR(rt);
+    	}
+    	return rt;
+    }
+    
+    /* replaceChild(TreeNode parent, TreeNode old, TreeNode child):
+     * Puts child where old used to hang under parent
+     * 
+     * Parameters:
+     * parent - old's parent, or null if old is the root
+     * old - node being replaced
+     * child - its replacement; may be null
+     * 
+     * Other notes:
+     * No return value.
+     */
+    private void replaceChild(TreeNode parent, TreeNode old, TreeNode child) {
+    	if (parent == null)
+    		root = child;
+    	else if (parent.lChild == old)
+    		parent.lChild = child;
+    	else
+    		parent.rChild = child;
+    	if (child != null)
+    		child.parent = parent;
+    }
+    
+    /* rebalanceUp(TreeNode node):
+     * Bottom-up counterpart of the rotator(..) calls in insertHelper(..), for changes made in place
+     * 
+     * Parameters:
+     * node - lowest node one of whose subtrees has just changed
+     * 
+     * Other notes:
+     * Cached heights above node still describe the tree before the change, so the walk stops at the
+     * first subtree whose height comes out unchanged: nothing above it can have gone out of balance.
+     * Summaries of augmented trees still have to be refreshed all the way up, though.
+     * No return value.
+     */
+    private void rebalanceUp(TreeNode node) {
+    	while (node != null) {
+    		int before = node.height;
+    		TreeNode parent = node.parent;
+    		TreeNode subtree = rotator(node,maxImbalance);
+    		replaceChild(parent, node, subtree);
+    		if (subtree.height == before) {
+    			if (augmented)
+    				augmentUp(parent);
+    			return;
     		}
+    		node = parent;
     	}
     }
     
-    /* deleteHelper(TreeNode curr, T keyInput):
-     * Helper method for delete
+    /* insertAt(TreeNode finger, T keyInput):
+     * Bottom-up insertion, for Cursor.insert(..) and ByteKeyAVLGTree
      * 
      * Parameters:
-     * rt - root goes here
+     * finger - node to search from, or null to search from the root
      * keyInput - key to add
      * 
      * Other notes:
-     * Method makes use of an additional helper method called rotator(..)
-     * Returns TreeNode to represent new node after deletion
+     * Keeps size and total up to date, like insertHelper(..). A node is only made once keyInput is known
+     * not to be in the tree.
+     * Returns the node holding keyInput.
      */
-    private TreeNode deleteHelper(TreeNode node, T keyInput) {
-    	TreeNode curr = node;
-    	if (node != null) {
-	    	if (keyInput.compareTo(node.data) == 0) {
-	    		if (isLeaf(curr)) {
-	    			curr = null;
-	    			return curr;
-	    		} else {
-	    			if (curr.rChild != null) {
-	    				if (curr.rChild.lChild == null) {
-		    				curr.data = curr.rChild.data;
-		    				curr.rChild = deleteHelper(curr.rChild,curr.data);
-		    				rotator(curr,maxImbalance);
-		    			} else {
-		    				T temp = fetch(curr.rChild.lChild);
-		    				curr.data = temp;
-		    				curr.rChild = deleteHelper(curr.rChild,temp);
-		    				rotator(curr,maxImbalance);
-		    			}
-	    			} else {
-	    				if (curr.lChild.rChild == null) {
-		    				curr.data = curr.lChild.data;
-		    				curr.lChild = deleteHelper(curr.lChild,curr.data);
-		    				rotator(curr,maxImbalance);
-		    			} else {
-		    				T temp = fetch(curr.lChild.rChild);
-		    				curr.data = temp;
-		    				curr.lChild = deleteHelper(curr.lChild,temp);
-		    				rotator(curr,maxImbalance);
-		    			}
-	    			}
-	    			
-	    		}
-	    	}    		
-	    	else if (keyInput.compareTo(node.data) < 0) {
-	    		curr.lChild = deleteHelper(node.lChild,keyInput);
-	    		rotator(curr,maxImbalance);
-	    	}
-	    	else if (keyInput.compareTo(node.data) > 0) {
-	    		curr.rChild = deleteHelper(node.rChild,keyInput);
-	    		rotator(curr,maxImbalance);
-	    	}
+    TreeNode insertAt(TreeNode finger, T keyInput) {
+    	TreeNode at = fingerSearch(finger, keyInput);
+    	int cmp = at == null ? 0 : keyInput.compareTo(at.data);
+    	if (at != null && cmp == 0) {
+    		if (multiset)
+    			addOccurrence(at);
+    		return at;
     	}
-    	return curr;
+    	TreeNode leaf = makeNode();
+    	leaf.data = keyInput;
+    	linkAt(at, cmp, leaf);
+    	return leaf;
     }
     
-    /* fetch(TreeNode curr):
-     * Will fetch leftmost leaf on specified branch of curr
+    /* linkAt(TreeNode at, int cmp, TreeNode leaf):
+     * Links in a node for a key that is not in the tree yet, and rebalances
      * 
      * Parameters:
-     * curr - Current node goes here; recursion purposes
+     * at - the node the key is to be attached under, as found by descend(..), or null if the tree is empty
+     * cmp - how the key compares to the key of at; ignored if at is null
+     * leaf - the node to link in, with its data set
      * 
      * Other notes:
-     * Returns T value fetched
+     * Keeps size and total up to date, like insertHelper(..). Lets augmented trees search first and only
+     * take a node from the pool once they know the key is new. Every node linked in by insertAt(..) comes
+     * through here too, so trees that cache something about the key, like ByteKeyAVLGTree, fill it in here.
      */
-    private T fetch(TreeNode curr) {
-    	if (curr.lChild == null) 
-    		return curr.data;
-    	return fetch(curr.lChild);
+    void linkAt(TreeNode at, int cmp, TreeNode leaf) {
+    	keyAdded(leaf.data);
+    	size++;
+    	total++;
+    	if (at == null) {
+    		root = leaf;
+    		return;
+    	}
+    	leaf.parent = at;
+    	if (cmp < 0)
+    		at.lChild = leaf;
+    	else
+    		at.rChild = leaf;
+    	rebalanceUp(at);
+    }
+    
+    /* removeNode(TreeNode node):
+     * Unlinks node from the tree and rebalances, for delete(..) and Cursor.delete()
+     * 
+     * Parameters:
+     * node - node to remove, whatever its count
+     * 
+     * Other notes:
+     * A node with two children is replaced by its in-order successor node, relinked into its place
+     * rather than having its key and count copied over, so every other node keeps its key and cursors
+     * on them stay valid. Costs O(height) in the worst case, but rebalancing usually stops well short
+     * of the root.
+     * No return value.
+     */
+    private void removeNode(TreeNode node) {
+    	TreeNode start;
+    	if (node.lChild != null && node.rChild != null) {
+    		TreeNode successor = node.rChild;
+    		while (successor.lChild != null)
+    			successor = successor.lChild;
+    		start = successor.parent == node ? successor : successor.parent;
+    		replaceChild(successor.parent, successor, successor.rChild);
+    		successor.lChild = node.lChild;
+    		successor.lChild.parent = successor;
+    		successor.rChild = node.rChild;
+    		if (successor.rChild != null)
+    			successor.rChild.parent = successor;
+    		successor.height = node.height;
+    		replaceChild(node.parent, node, successor);
+    	} else {
+    		start = node.parent;
+    		replaceChild(node.parent, node, node.lChild != null ? node.lChild : node.rChild);
+    	}
+    	size--;
+    	if (filter != null)
+    		filter.remove(node.data);
+    	rebalanceUp(start);
+    	releaseNode(node);
+    }
+    
+    /* successor(TreeNode node):
+     * Returns the node holding the next key in order, or null if node holds the largest key
+     * 
+     * Other notes:
+     * Follows parent links, so walking the whole tree this way costs O(1) amortized per node.
+     */
+    private TreeNode successor(TreeNode node) {
+    	if (node.rChild != null) {
+    		node = node.rChild;
+    		while (node.lChild != null)
+    			node = node.lChild;
+    		return node;
+    	}
+    	while (node.parent != null && node.parent.rChild == node)
+    		node = node.parent;
+    	return node.parent;
+    }
+    
+    /* predecessor(TreeNode node):
+     * Mirror image of successor(..)
+     */
+    private TreeNode predecessor(TreeNode node) {
+    	if (node.lChild != null) {
+    		node = node.lChild;
+    		while (node.rChild != null)
+    			node = node.rChild;
+    		return node;
+    	}
+    	while (node.parent != null && node.parent.lChild == node)
+    		node = node.parent;
+    	return node.parent;
+    }
+    
+    /* fingerSearch(TreeNode finger, T keyInput):
+     * Searches for keyInput starting from finger instead of the root
+     * 
+     * Parameters:
+     * finger - node to start from, or null to start from the root
+     * keyInput - key to search for
+     * 
+     * Other notes:
+     * For a key after the finger, climbs until an ancestor reached from the left is past keyInput.
+     * Ancestors reached from the right are known to come before keyInput and are skipped without a
+     * comparison. keyInput then lies in the right subtree of the last node passed, from, since the
+     * path from there up to the stopping point only takes right links. The descent starts there, so
+     * keys just after the finger are found next to it even if the climb went all the way up the right
+     * spine, as it does for appends. Keys before the finger are handled the same way, mirrored.
+     * Searches from the root go through descend(..).
+     * Returns the node holding keyInput, or the node keyInput would be attached under if it is not in
+     * the tree, or null if the tree is empty.
+     */
+    private TreeNode fingerSearch(TreeNode finger, T keyInput) {
+    	if (finger == null)
+    		return descend(keyInput);
+    	TreeNode curr = finger;
+    	int cmp = keyInput.compareTo(curr.data);
+    	if (cmp == 0)
+    		return curr;
+    	TreeNode from = curr;
+    	if (cmp > 0) {
+    		while (curr.parent != null) {
+    			if (curr.parent.lChild == curr) {
+    				int up = keyInput.compareTo(curr.parent.data);
+    				if (up == 0)
+    					return curr.parent;
+    				if (up < 0)
+    					break;
+    				from = curr.parent;
+    			}
+    			curr = curr.parent;
+    		}
+    		if (from.rChild == null)
+    			return from;
+    		return descendFrom(from.rChild, keyInput);
+    	}
+    	while (curr.parent != null) {
+    		if (curr.parent.rChild == curr) {
+    			int up = keyInput.compareTo(curr.parent.data);
+    			if (up == 0)
+    				return curr.parent;
+    			if (up > 0)
+    				break;
+    			from = curr.parent;
+    		}
+    		curr = curr.parent;
+    	}
+    	if (from.lChild == null)
+    		return from;
+    	return descendFrom(from.lChild, keyInput);
+    }
+    
+    /* descendFrom(TreeNode curr, T keyInput):
+     * Plain descent from curr, for fingerSearch(..) and descend(..)
+     * 
+     * Other notes:
+     * Returns the node holding keyInput, or the node keyInput would be attached under.
+     */
+    private TreeNode descendFrom(TreeNode curr, T keyInput) {
+    	while (true) {
+    		int cmp = keyInput.compareTo(curr.data);
+    		if (cmp == 0)
+    			return curr;
+    		TreeNode next = cmp < 0 ? curr.lChild : curr.rChild;
+    		if (next == null)
+    			return curr;
+    		curr = next;
+    	}
     }
     
     /* searchHelper(TreeNode node,T keyInput):
@@ -362,39 +673,442 @@ public class AVLGTree<T extends Comparable<T>> {
     	return toReturn;
     }
     
-    /* traverse(TreeNode curr):
-     * Helper method for isBST() to help determine if each node satisfies BST property
+    /* keyAdded(T keyInput):
+     * Tells the search filter, if any, about a key about to get a node of its own
+     * 
+     * Parameters:
+     * keyInput - key not in the tree yet, and not linked in yet either
+     * 
+     * Other notes:
+     * Once the tree outgrows the filter, the filter is rebuilt from the tree for twice as many keys,
+     * which costs O(1) amortized per insertion.
+     * No return value.
+     */
+    private void keyAdded(T keyInput) {
+    	if (filter == null)
+    		return;
+    	if (size >= filter.capacity())
+    		rebuildFilter(2 * (size + 1));
+    	filter.add(keyInput);
+    }
+    
+    /* rebuildFilter(int capacity):
+     * Replaces the search filter with one sized for capacity keys, holding every key of the tree
+     */
+    private void rebuildFilter(int capacity) {
+    	filter = new CountingBloomFilter(capacity, filterRate);
+    	for (T key : this)
+    		filter.add(key);
+    }
+    
+    /* lookup(T keyInput):
+     * locate(..), behind the search filter if there is one
+     * 
+     * Other notes:
+     * Counts the lookups the filter answers on its own, and the ones it lets through in vain.
+     * Returns the node holding keyInput, or null if there is none.
+     */
+    private TreeNode lookup(T keyInput) {
+    	if (filter == null)
+    		return locate(keyInput);
+    	if (!filter.mightContain(keyInput)) {
+    		filterHits++;
+    		return null;
+    	}
+    	TreeNode found = locate(keyInput);
+    	if (found == null)
+    		filterFalsePositives++;
+    	return found;
+    }
+    
+    /* newNode():
+     * Allocates an empty node; see makeNode()
+     * 
+     * Other notes:
+     * Overridden by augmented trees, whose nodes carry more fields. The node's own summary must be
+     * set up by the override, since leaves are linked in without going through updateHeight(..).
+     */
+    TreeNode newNode() {
+    	return new TreeNode();
+    }
+    
+    /* resetNode(TreeNode node):
+     * Puts whatever an augmented tree keeps in node back the way newNode() makes it, and drops any
+     * reference it holds, before node goes into the pool. Does nothing unless overridden.
+     */
+    void resetNode(TreeNode node) {
+    }
+    
+    /* makeNode():
+     * Makes an empty node, which the caller fills in and links into the tree
+     * 
+     * Other notes:
+     * Takes the node from the pool when there is one to take, and allocates it with newNode() otherwise.
+     * Nodes in the pool are already unlinked and emptied by releaseNode(..), so only the fields that
+     * mark them as removed need resetting.
+     */
+    TreeNode makeNode() {
+    	if (poolCapacity == 0)
+    		return newNode();
+    	TreeNode node = freeList;
+    	if (node == null) {
+    		poolMisses++;
+    		return newNode();
+    	}
+    	poolHits++;
+    	freeList = node.lChild;
+    	freeCount--;
+    	node.lChild = null;
+    	node.height = 0;
+    	node.count = 1;
+    	return node;
+    }
+    
+    /* releaseNode(TreeNode node):
+     * Hands a node that has left the tree to the pool, if there is room
      * 
      * Parameters:
-     * curr - Current node; recursion purposes
-     * 
-     * Other notes:
-     * Returns boolean value to represent satisfaction of BST property
-     */
-    private boolean traverse(TreeNode curr) {
-    	boolean ret = false;
-    	if (curr == null) {
-    		return false;
-    	}
-    	traverse(curr.lChild);
-    	if (!isLeaf(curr) && curr.lChild != null || curr.rChild != null) {
-    		boolean condition = false;
-    		if (curr.lChild != null && curr.rChild != null)
-    			condition = curr.lChild.data.compareTo(curr.data) < 0 && curr.rChild.data.compareTo(curr.data) > 0;
-    		else if (curr.lChild != null)
-    			condition = curr.lChild.data.compareTo(curr.data) < 0;
-    		else if (curr.rChild != null)
-    			condition = curr.rChild.data.compareTo(curr.data) > 0;
-    			
-    		if (!condition) {
-    			ret = false;
-    			return ret;
+     * node - unlinked node; its key is dropped either way, so the pool never keeps keys alive
+     * 
+     * Other notes:
+     * No return value.
+     */
+    void releaseNode(TreeNode node) {
+    	node.data = null;
+    	node.lChild = null;
+    	node.rChild = null;
+    	node.parent = null;
+    	node.height = REMOVED;
+    	if (freeCount == poolCapacity)
+    		return;
+    	resetNode(node);
+    	node.lChild = freeList;
+    	freeList = node;
+    	freeCount++;
+    }
+    
+    /* recycleAll(TreeNode node):
+     * Hands the nodes of a whole subtree to the pool, for clear(), until the pool is full
+     * 
+     * Parameters:
+     * node - root of a subtree that has already been cut off from the tree
+     * 
+     * Other notes:
+     * Rotates left children up until the node at hand has none, then releases it and moves on to its
+     * right child. This takes neither a stack nor recursion, and O(1) time per node released. Whatever
+     * is left once the pool is full is left to the garbage collector.
+     * No return value.
+     */
+    private void recycleAll(TreeNode node) {
+    	while (node != null && freeCount < poolCapacity) {
+    		TreeNode left = node.lChild;
+    		if (left != null) {
+    			node.lChild = left.rChild;
+    			left.rChild = node;
+    			node = left;
     		} else {
-    			ret = true;
+    			TreeNode right = node.rChild;
+    			releaseNode(node);
+    			node = right;
     		}
     	}
-    	traverse(curr.rChild);
-    	return ret;
+    }
+    
+    /* augment(TreeNode node):
+     * Recomputes whatever an augmented tree keeps per subtree, from node and its children
+     * 
+     * Other notes:
+     * Called through updateHeight(..) whenever node's children change, children before parents, and
+     * up to the root after every bottom-up update. Changes to a multiset count do not call it, so
+     * summaries must not depend on counts. Does nothing unless overridden.
+     */
+    void augment(TreeNode node) {
+    }
+    
+    /* augmentUp(TreeNode node):
+     * Calls augment(..) on node and each of its ancestors
+     */
+    void augmentUp(TreeNode node) {
+    	for (; node != null; node = node.parent)
+    		augment(node);
+    }
+    
+    /* insertKey(T key), locate(T keyInput), descend(T keyInput):
+     * The top-down insertion, exact search and attach-point search from the root that every public method
+     * goes through
+     * 
+     * Other notes:
+     * Overridden by trees that compare keys faster than compareTo(..) can, such as ByteKeyAVLGTree.
+     * insertKey(..) must leave size and total as insertHelper(..) does. locate(..) returns the node holding
+     * keyInput, or null; descend(..) returns the same as fingerSearch(..) from the root.
+     */
+    void insertKey(T key) {
+    	root = insertHelper(root,key);
+    }
+    
+    TreeNode locate(T keyInput) {
+    	return searchHelper(root,keyInput);
+    }
+    
+    TreeNode descend(T keyInput) {
+    	return root == null ? null : descendFrom(root, keyInput);
+    }
+    
+    /* rootNode(), findNode(T key):
+     * Read access to the nodes for augmented trees
+     */
+    TreeNode rootNode() {
+    	return root;
+    }
+    
+    TreeNode findNode(T key) {
+    	return lookup(key);
+    }
+    
+    /* RangeFolder:
+     * What foldRange(..) hands the pieces of a range to, for an augmented tree to combine into its own
+     * accumulator
+     * 
+     * Other notes:
+     * A piece is a node's own value next to one of its subtrees' summary; either may be null, and then adds
+     * nothing. prepend(..) puts node before subtree, ahead of everything folded so far; append(..) puts
+     * subtree before node, after everything folded so far.
+     */
+    abstract class RangeFolder {
+    	abstract void prepend(TreeNode node, TreeNode subtree);
+    	
+    	abstract void append(TreeNode subtree, TreeNode node);
+    }
+    
+    /* foldRange(T lo, T hi, RangeFolder folder):
+     * Hands folder, in key order, the pieces that make up every node between lo and hi, both included
+     * 
+     * Parameters:
+     * lo, hi - bounds of the range; null for no bound
+     * 
+     * Other notes:
+     * Only the two paths from the root towards lo and hi are walked, so this costs O(height) whatever the
+     * size of the range. Below the node where the paths split, every node on the path towards lo that is
+     * not before lo brings itself and its right subtree along, and symmetrically on the path towards hi.
+     * Hands over nothing if the range is empty.
+     */
+    void foldRange(T lo, T hi, RangeFolder folder) {
+    	TreeNode split = root;
+    	while (split != null) {
+    		if (lo != null && split.data.compareTo(lo) < 0)
+    			split = split.rChild;
+    		else if (hi != null && split.data.compareTo(hi) > 0)
+    			split = split.lChild;
+    		else
+    			break;
+    	}
+    	if (split == null)
+    		return;
+    	if (lo == null) {
+    		folder.prepend(null, split.lChild);
+    	} else {
+    		for (TreeNode curr = split.lChild; curr != null; ) {
+    			if (curr.data.compareTo(lo) >= 0) {
+    				folder.prepend(curr, curr.rChild);
+    				curr = curr.lChild;
+    			} else {
+    				curr = curr.rChild;
+    			}
+    		}
+    	}
+    	folder.append(null, split);
+    	if (hi == null) {
+    		folder.append(split.rChild, null);
+    	} else {
+    		for (TreeNode curr = split.rChild; curr != null; ) {
+    			if (curr.data.compareTo(hi) <= 0) {
+    				folder.append(curr.lChild, curr);
+    				curr = curr.rChild;
+    			} else {
+    				curr = curr.lChild;
+    			}
+    		}
+    	}
+    }
+    
+    /* Validation:
+     * What validate(..) has found so far in one part of the tree
+     * 
+     * Other notes:
+     * Every violation is counted, but only the first MAX_REPORTED are kept. Results of disjoint subtrees
+     * are combined with absorb(..).
+     */
+    private static final int MAX_REPORTED = 16;
+    
+    private final class Validation {
+    	private long nodes;
+    	private long occurrences;
+    	private int height;
+    	private final long[] counts = new long[ValidationReport.Kind.values().length];
+    	private final ArrayList<ValidationReport.Violation<T>> found = new ArrayList<>();
+    	
+    	private void report(ValidationReport.Kind kind, T key, String message) {
+    		counts[kind.ordinal()]++;
+    		if (found.size() < MAX_REPORTED)
+    			found.add(new ValidationReport.Violation<>(kind, key, message));
+    	}
+    	
+    	private void absorb(Validation other) {
+    		nodes += other.nodes;
+    		occurrences += other.occurrences;
+    		for (int i = 0; i < counts.length; i++)
+    			counts[i] += other.counts[i];
+    		for (int i = 0; i < other.found.size() && found.size() < MAX_REPORTED; i++)
+    			found.add(other.found.get(i));
+    	}
+    }
+    
+    /* checkNode(TreeNode node, T lo, T hi, int lHeight, int rHeight, Validation v):
+     * Checks the invariants of a single node, once both of its subtrees have been measured
+     * 
+     * Parameters:
+     * node - node to check
+     * lo, hi - exclusive bounds set by node's ancestors; null if unbounded
+     * lHeight, rHeight - measured heights of node's subtrees
+     * v - where to report violations
+     * 
+     * Other notes:
+     * Returns the measured height of node's subtree.
+     */
+    private int checkNode(TreeNode node, T lo, T hi, int lHeight, int rHeight, Validation v) {
+    	if ((lo != null && node.data.compareTo(lo) <= 0) || (hi != null && node.data.compareTo(hi) >= 0))
+    		v.report(ValidationReport.Kind.ORDER, node.data, "Key " + node.data + " is outside (" + lo + ", " + hi + ").");
+    	if (Math.abs(lHeight - rHeight) > maxImbalance)
+    		v.report(ValidationReport.Kind.BALANCE, node.data, "Key " + node.data + " has balance "
+    				+ (lHeight - rHeight) + ", beyond " + maxImbalance + ".");
+    	int height = Math.max(lHeight, rHeight) + 1;
+    	if (node.height != height)
+    		v.report(ValidationReport.Kind.HEIGHT, node.data, "Key " + node.data + " caches height " + node.height
+    				+ " but has height " + height + ".");
+    	if ((node.lChild != null && node.lChild.parent != node) || (node.rChild != null && node.rChild.parent != node))
+    		v.report(ValidationReport.Kind.LINK, node.data, "A child of key " + node.data + " links to another parent.");
+    	if (node.count < 1 || (!multiset && node.count != 1))
+    		v.report(ValidationReport.Kind.SIZE, node.data, "Key " + node.data + " has count " + node.count + ".");
+    	v.nodes++;
+    	v.occurrences += node.count;
+    	return height;
+    }
+    
+    /* ValidationFrame:
+     * A node on the explicit stack of validateHelper(..), with its bounds and how far it has got
+     */
+    private final class ValidationFrame {
+    	private final TreeNode node;
+    	private final T lo;
+    	private final T hi;
+    	private int lHeight;
+    	private int stage; // 0: left subtree next, 1: right subtree next, 2: both measured
+    	
+    	private ValidationFrame(TreeNode node, T lo, T hi) {
+    		this.node = node;
+    		this.lo = lo;
+    		this.hi = hi;
+    	}
+    }
+    
+    /* validateHelper(TreeNode node, T lo, T hi, Validation v):
+     * Sequential bottom-up pass for validate()
+     * 
+     * Parameters:
+     * node - root of the subtree to check
+     * lo, hi - exclusive bounds set by node's ancestors; null if unbounded
+     * v - where to report violations
+     * 
+     * Other notes:
+     * Every node is visited once, so this is O(n), unlike checks built on measuring heights per node.
+     * Walks in post-order with an explicit stack rather than recursion, so that a corrupt tree degenerated
+     * into a long chain gets a report instead of overflowing the call stack. height always holds the
+     * measured height of the subtree finished last.
+     * Returns the measured height of the subtree.
+     */
+    private int validateHelper(TreeNode node, T lo, T hi, Validation v) {
+    	int height = -1;
+    	if (node == null)
+    		return height;
+    	ArrayDeque<ValidationFrame> stack = new ArrayDeque<>();
+    	stack.push(new ValidationFrame(node, lo, hi));
+    	while (!stack.isEmpty()) {
+    		ValidationFrame f = stack.peek();
+    		if (f.stage == 0) {
+    			f.stage = 1;
+    			if (f.node.lChild != null) {
+    				stack.push(new ValidationFrame(f.node.lChild, f.lo, f.node.data));
+    				continue;
+    			}
+    			height = -1;
+    		}
+    		if (f.stage == 1) {
+    			f.lHeight = height;
+    			f.stage = 2;
+    			if (f.node.rChild != null) {
+    				stack.push(new ValidationFrame(f.node.rChild, f.node.data, f.hi));
+    				continue;
+    			}
+    			height = -1;
+    		}
+    		stack.pop();
+    		height = checkNode(f.node, f.lo, f.hi, f.lHeight, height, v);
+    	}
+    	return height;
+    }
+    
+    /* ValidationTask:
+     * Fork-join version of validateHelper(..)
+     * 
+     * Other notes:
+     * Forks the left subtree down to forkDepth levels, which yields enough tasks to keep every worker busy,
+     * then falls back to the sequential pass. Only those few levels recurse; the iterative pass handles
+     * however deep the tree goes below them. Results are merged children first, as in the sequential pass.
+     */
+    private final class ValidationTask extends RecursiveTask<Validation> {
+    	private static final long serialVersionUID = 1L;
+    	private final TreeNode node;
+    	private final T lo;
+    	private final T hi;
+    	private final int forkDepth;
+    	
+    	private ValidationTask(TreeNode node, T lo, T hi, int forkDepth) {
+    		this.node = node;
+    		this.lo = lo;
+    		this.hi = hi;
+    		this.forkDepth = forkDepth;
+    	}
+    	
+    	@Override
+    	protected Validation compute() {
+    		Validation v = new Validation();
+    		if (forkDepth == 0 || node == null) {
+    			v.height = validateHelper(node, lo, hi, v);
+    			return v;
+    		}
+    		ValidationTask left = new ValidationTask(node.lChild, lo, node.data, forkDepth - 1);
+    		left.fork();
+    		Validation right = new ValidationTask(node.rChild, node.data, hi, forkDepth - 1).compute();
+    		Validation leftResult = left.join();
+    		v.absorb(leftResult);
+    		v.absorb(right);
+    		v.height = checkNode(node, lo, hi, leftResult.height, right.height, v);
+    		return v;
+    	}
+    }
+    
+    /* report(Validation v):
+     * Adds the tree-wide checks to v and turns it into a ValidationReport
+     */
+    private ValidationReport<T> report(Validation v) {
+    	if (root != null && root.parent != null)
+    		v.report(ValidationReport.Kind.LINK, root.data, "The root links to a parent.");
+    	if (v.nodes != size)
+    		v.report(ValidationReport.Kind.SIZE, null, "Tree counts " + size + " elements but holds " + v.nodes + ".");
+    	if (v.occurrences != total)
+    		v.report(ValidationReport.Kind.SIZE, null, "Tree counts " + total + " occurrences but holds "
+    				+ v.occurrences + ".");
+    	return new ValidationReport<>(v.nodes, v.height, v.counts, v.found);
     }
     
     /* build(TreeNode curr, T elt):
@@ -410,19 +1124,117 @@ public class AVLGTree<T extends Comparable<T>> {
      */
     private TreeNode build(TreeNode rt, T keyInput) {
     	if (rt == null) {
-    		rt = new TreeNode();
+    		rt = makeNode();
     		rt.data = keyInput;
     	}
     	if (keyInput.compareTo(rt.data) > 0) {
     		rt.lChild = build(rt.lChild,keyInput);
+    		rt.lChild.parent = rt;
     	}
     	if (keyInput.compareTo(rt.data) < 0) {
     		rt.rChild = build(rt.rChild,keyInput);
+    		rt.rChild.parent = rt;
     	}
+    	updateHeight(rt);
     	return rt;
     }
     
     
+    /* pushLowerBound(ArrayDeque<TreeNode> stack, T from, boolean inclusive):
+     * Positions an in-order walk on the first key at or after from
+     * 
+     * Parameters:
+     * stack - empty stack of the walk
+     * from - lower bound, or null to start at the smallest key
+     * inclusive - whether a key equal to from is part of the walk
+     * 
+     * Other notes:
+     * Pushes exactly the ancestors whose key is still to be visited, so popping the stack yields the
+     * keys in order. Costs O(height).
+     * No return value.
+     */
+    private void pushLowerBound(ArrayDeque<TreeNode> stack, T from, boolean inclusive) {
+    	TreeNode curr = root;
+    	while (curr != null) {
+    		int cmp = from == null ? -1 : from.compareTo(curr.data);
+    		if (cmp < 0 || (cmp == 0 && inclusive)) {
+    			stack.push(curr);
+    			if (cmp == 0)
+    				return;
+    			curr = curr.lChild;
+    		} else {
+    			curr = curr.rChild;
+    		}
+    	}
+    }
+    
+    /* pushLeftSpine(ArrayDeque<TreeNode> stack, TreeNode curr):
+     * Pushes curr and all of its left descendants, so that the smallest of them is on top
+     */
+    private void pushLeftSpine(ArrayDeque<TreeNode> stack, TreeNode curr) {
+    	while (curr != null) {
+    		stack.push(curr);
+    		curr = curr.lChild;
+    	}
+    }
+    
+    /* InOrderIterator:
+     * Iterator over the keys of the tree, in ascending order
+     * 
+     * Other notes:
+     * Holds at most height + 1 nodes. It does not detect concurrent modification, so it must not be
+     * used across insertions or deletions.
+     */
+    private class InOrderIterator implements Iterator<T> {
+    	private final ArrayDeque<TreeNode> stack = new ArrayDeque<>();
+    	
+    	private InOrderIterator() {
+    		pushLeftSpine(stack, root);
+    	}
+    	
+    	public boolean hasNext() {
+    		return !stack.isEmpty();
+    	}
+    	
+    	public T next() {
+    		if (stack.isEmpty())
+    			throw new NoSuchElementException();
+    		TreeNode curr = stack.pop();
+    		pushLeftSpine(stack, curr.rChild);
+    		return curr.data;
+    	}
+    }
+    
+    /* writeSorted(ChannelOutput out, KeyCodec<T> codec):
+     * Helper method for save(..) that writes every key in order
+     * 
+     * Parameters:
+     * out - where to write the keys
+     * codec - how to write each key
+     * 
+     * Other notes:
+     * Iterative in-order walk, so a degenerate tree cannot overflow the call stack.
+     * No return value.
+     */
+    private void writeSorted(ChannelOutput out, KeyCodec<T> codec) throws IOException {
+    	ArrayDeque<TreeNode> stack = new ArrayDeque<>();
+    	TreeNode curr = root;
+    	T previous = null;
+    	while (curr != null || !stack.isEmpty()) {
+    		while (curr != null) {
+    			stack.push(curr);
+    			curr = curr.lChild;
+    		}
+    		curr = stack.pop();
+    		codec.encode(curr.data, previous, out);
+    		if (multiset)
+    			out.writeVarLong(curr.count);
+    		previous = curr.data;
+    		curr = curr.rChild;
+    	}
+    }
+    
+    
     /* ******************************************************** *
      * ************************ PUBLIC METHODS **************** *
      * ******************************************************** */
@@ -433,40 +1245,74 @@ public class AVLGTree<T extends Comparable<T>> {
      * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
      */
     public AVLGTree(int maxImbalance) throws InvalidBalanceException {
+    	this(maxImbalance, false);
+    }
+    
+    /**
+     * <p>Creates a tree that is either a set, like {@link #AVLGTree(int)}, or a multiset. A multiset keeps a
+     * count of occurrences in every node: inserting a key that is already there raises its count, and
+     * deleting it lowers the count, neither of which changes the shape of the tree. Only deleting the last
+     * occurrence removes the node.</p>
+     * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+     * @param multiset {@code true} to count duplicate keys, {@code false} to ignore them.
+     * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+     */
+    public AVLGTree(int maxImbalance, boolean multiset) throws InvalidBalanceException {
+    	this(maxImbalance, multiset, false);
+    }
+    
+    /* AVLGTree(int maxImbalance, boolean multiset, boolean augmented):
+     * Constructor for augmented trees, which override newNode() and augment(..)
+     */
+    AVLGTree(int maxImbalance, boolean multiset, boolean augmented) throws InvalidBalanceException {
     	if (maxImbalance < 1)
     		throw new InvalidBalanceException("Max imbalance must be greater than or equal to 1.");
     	root = null;
     	this.maxImbalance = maxImbalance;
+    	this.multiset = multiset;
+    	this.augmented = augmented;
     	size = 0;
+    	total = 0;
     }
 
     /**
      * Insert key in the tree. You will <b>not</b> be tested on
      * duplicates! This means that in a deletion test, any key that has been
      * inserted and subsequently deleted should <b>not</b> be found in the tree!
+     * Inserting a key that is already in the tree leaves the tree and its count unchanged, unless the
+     * tree is a multiset, in which case the key's count goes up by one.
      * s
      * @param key The key to insert in the tree.
+     * @throws IllegalStateException if the tree is a multiset and key already occurs
+     * {@link Integer#MAX_VALUE} times.
      */
     public void insert(T key) {
-    	root = insertHelper(root,key);
-    	size++;
+    	if (recorder != null)
+    		recorder.insert(key);
+    	insertKey(key);
     }
     
     /**
-     * Delete the key from the data structure and return it to the caller.
+     * Delete the key from the data structure and return it to the caller. In a multiset, this removes a
+     * single occurrence of the key.
      * @param key The key to delete from the structure.
      * @return The key that was removed, or {@code null} if the key was not found.
      * @throws EmptyTreeException if the tree is empty.
      */
     public T delete(T key) throws EmptyTreeException {
+    	if (recorder != null)
+    		recorder.delete(key);
     	if (isEmpty())
     		throw new EmptyTreeException("Tree is empty.");
-    	if (search(key)!=null) {
-    		root = deleteHelper(root,key);
-    		size--;
-    		return key;
-    	} else
+    	TreeNode found = lookup(key);
+    	if (found == null)
     		return null;
+    	if (found.count > 1)
+    		found.count--;
+    	else
+    		removeNode(found);
+    	total--;
+    	return key;
     }
     
     /**
@@ -475,14 +1321,27 @@ public class AVLGTree<T extends Comparable<T>> {
      * @param key The key to search for.
      * @return key if key is in the tree, or {@code null} otherwise.
      * @throws EmptyTreeException if the tree is empty.
+     * @see #contains(Comparable)
      */
     public T search(T key) throws EmptyTreeException {
+    	if (recorder != null)
+    		recorder.search(key);
     	if (isEmpty())
     		throw new EmptyTreeException("Tree is empty.");
-    	if (searchHelper(root,key) == null)
-    		return null;
-    	else
-    		return searchHelper(root,key).data;
+    	TreeNode found = lookup(key);
+    	return found == null ? null : found.data;
+    }
+    
+    /**
+     * <p>Query the tree for key. Unlike {@link #search(Comparable)}, this does not throw on an empty tree,
+     * which makes it the cheaper choice where most lookups miss.</p>
+     * @param key The key to search for.
+     * @return {@code true} if key is in the tree, {@code false} otherwise.
+     */
+    public boolean contains(T key) {
+    	if (recorder != null)
+    		recorder.search(key);
+    	return lookup(key) != null;
     }
     
     /**
@@ -533,7 +1392,7 @@ public class AVLGTree<T extends Comparable<T>> {
      * {@code false} otherwise.
      */
     public boolean isBST() {        
-        return traverse(root);
+        return validate().getViolationCount(ValidationReport.Kind.ORDER) == 0;
     }
     
     /**
@@ -543,27 +1402,502 @@ public class AVLGTree<T extends Comparable<T>> {
      * otherwise.
      */
     public boolean isAVLGBalanced() {
-    	return (getCurrBalance(root) >= -1*maxImbalance && getCurrBalance(root) <= maxImbalance);
+    	return validate().getViolationCount(ValidationReport.Kind.BALANCE) == 0;
+    }
+    
+    /**
+     * <p>Checks every invariant of the tree in a single bottom-up pass, in O(n) time: that every key lies
+     * strictly between the bounds set by its ancestors, that no node is out of balance by more than the
+     * maximum imbalance, that every cached height is right, that parent links mirror child links, and that
+     * the element count matches the nodes actually in the tree. Heights are measured during the pass, so a
+     * wrong cached height cannot hide a balance problem.</p>
+     * @return A report holding how often each invariant is broken, and the first few violations found.
+     * @see #validateParallel(ForkJoinPool)
+     */
+    public ValidationReport<T> validate() {
+    	Validation v = new Validation();
+    	v.height = validateHelper(root, null, null, v);
+    	return report(v);
+    }
+    
+    /**
+     * <p>Same as {@link #validate()}, with the subtrees near the root checked in parallel on pool. Worth it
+     * for trees of millions of nodes; the result is the same as the sequential pass, including which
+     * violations are reported first.</p>
+     * @param pool The pool to run on.
+     * @return A report holding how often each invariant is broken, and the first few violations found.
+     */
+    public ValidationReport<T> validateParallel(ForkJoinPool pool) {
+    	// Four tasks per worker or so, to even out subtrees of different sizes.
+    	int forkDepth = 32 - Integer.numberOfLeadingZeros(pool.getParallelism()) + 2;
+    	return report(pool.invoke(new ValidationTask(root, null, null, forkDepth)));
     }
 
 
     /**
      * <p>Empties the AVL-G Tree of all its elements. After a call to this method, the
-     * tree should have <b>0</b> elements.</p>
+     * tree should have <b>0</b> elements. With a node pool, the old nodes fill up the pool first.</p>
      */
     public void clear(){
+    	if (recorder != null)
+    		recorder.clear();
+    	TreeNode old = root;
     	root = null;
     	size = 0;
+    	total = 0;
+    	epoch++;
+    	if (filter != null)
+    		filter.clear();
+    	recycleAll(old);
     }
 
 
     /**
-     * <p>Return the number of elements in the tree.</p>
+     * <p>Return the number of elements in the tree. In a multiset, every distinct key is counted once;
+     * see {@link #getTotalCount()}.</p>
      * @return  The number of elements in the tree.
      */
     public int getCount(){
         return size;
     }
+    
+    /**
+     * <p>Return the number of keys in the tree, counting each one as many times as it occurs. Equal to
+     * {@link #getCount()} unless the tree is a multiset.</p>
+     * @return The number of occurrences of all keys in the tree.
+     */
+    public long getTotalCount() {
+    	return total;
+    }
+    
+    /**
+     * Query how many times key occurs in the tree.
+     * @param key The key to count.
+     * @return The number of occurrences of key: 0 if it is not in the tree, at most 1 unless the tree is a
+     * multiset.
+     */
+    public int count(T key) {
+    	TreeNode found = lookup(key);
+    	return found == null ? 0 : found.count;
+    }
+    
+    /**
+     * @return {@code true} if the tree counts duplicate keys, {@code false} if it ignores them.
+     * @see #AVLGTree(int, boolean)
+     */
+    public boolean isMultiset() {
+    	return multiset;
+    }
+    
+    /**
+     * <p>Puts a counting Bloom filter in front of {@link #search(Comparable)}, {@link #contains(Comparable)},
+     * {@link #count(Comparable)} and {@link #delete(Comparable)}, so that most lookups of keys that are not in
+     * the tree return without walking it. The filter is sized from {@link #getCount()}, kept up to date by
+     * insertions, deletions and {@link #clear()}, and rebuilt for twice as many keys whenever the tree
+     * outgrows it. At a 1% false-positive rate it takes 5 to 20 bytes per key, depending on how far the tree
+     * is from its next rebuild, and about 7 hash probes per lookup, so it only pays off where misses are
+     * common. Calling this again rebuilds the filter.</p>
+     *
+     * <p>Keys are hashed with {@link Object#hashCode()}, which must therefore be consistent with
+     * {@link Comparable#compareTo(Object)}.</p>
+     * @param falsePositiveRate The fraction of misses the filter should let through, strictly between 0 and 1;
+     * for example 0.01.
+     * @throws IllegalArgumentException if falsePositiveRate is out of range.
+     * @see #getFilterHits()
+     * @see #getFilterFalsePositives()
+     */
+    public void enableSearchFilter(double falsePositiveRate) {
+    	if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+    		throw new IllegalArgumentException("False-positive rate must be strictly between 0 and 1.");
+    	filterRate = falsePositiveRate;
+    	rebuildFilter(Math.max(2 * size, 1024));
+    }
+    
+    /**
+     * Removes the filter set up by {@link #enableSearchFilter(double)}; its counters are kept.
+     */
+    public void disableSearchFilter() {
+    	filter = null;
+    }
+    
+    /**
+     * @return How many lookups the search filter has answered on its own, without walking the tree.
+     */
+    public long getFilterHits() {
+    	return filterHits;
+    }
+    
+    /**
+     * @return How many lookups the search filter has let through for keys that turned out not to be in the
+     * tree.
+     */
+    public long getFilterFalsePositives() {
+    	return filterFalsePositives;
+    }
+    
+    /**
+     * @return How many single rotations the tree has made since it was created; a double rotation counts
+     * as two.
+     */
+    public long getRotationCount() {
+    	return rotations;
+    }
+    
+    /**
+     * <p>Records every later call to {@link #insert(Comparable)}, {@link #delete(Comparable)},
+     * {@link #search(Comparable)}, {@link #contains(Comparable)} and {@link #clear()} into recorder, for
+     * {@link AVLGTreeReplay} to replay.</p>
+     * @param recorder Where to record calls, or {@code null} to stop recording.
+     * @throws IllegalArgumentException if recorder was opened for a multiset and this tree is not one, or
+     * the other way around.
+     */
+    public void setRecorder(AVLGTreeRecorder<T> recorder) {
+    	if (recorder != null && recorder.isMultiset() != multiset)
+    		throw new IllegalArgumentException(multiset ? "Recorder was not opened for a multiset."
+    				: "Recorder was opened for a multiset.");
+    	this.recorder = recorder;
+    }
+    
+    /**
+     * <p>Keeps up to maxFree nodes of deleted keys, and of trees emptied by {@link #clear()}, for reuse by
+     * later insertions. Once the pool has filled up, a loop that inserts and deletes keys at the same rate
+     * allocates no nodes at all. Pooled nodes never hold on to their keys. Calling this again only changes
+     * the bound: nodes beyond it are dropped.</p>
+     * @param maxFree The maximum number of nodes kept for reuse.
+     * @throws IllegalArgumentException if maxFree is negative.
+     * @see #getPoolHitRate()
+     */
+    public void enableNodePool(int maxFree) {
+    	if (maxFree < 0)
+    		throw new IllegalArgumentException("Pool size must not be negative.");
+    	poolCapacity = maxFree;
+    	while (freeCount > maxFree) {
+    		freeList = freeList.lChild;
+    		freeCount--;
+    	}
+    }
+    
+    /**
+     * Drops every pooled node; deleted nodes are left to the garbage collector again.
+     */
+    public void disableNodePool() {
+    	enableNodePool(0);
+    }
+    
+    /**
+     * @return The fraction of nodes made since {@link #enableNodePool(int)} that came from the pool, or 0 if
+     * none were made.
+     */
+    public double getPoolHitRate() {
+    	long made = poolHits + poolMisses;
+    	return made == 0 ? 0 : (double) poolHits / made;
+    }
+
+    /**
+     * <p>Returns an iterator over the keys of the tree, in ascending order. The iterator is not fail-fast:
+     * the tree must not be modified while it is in use.</p>
+     * @return An in-order iterator.
+     */
+    @Override
+    public Iterator<T> iterator() {
+    	return new InOrderIterator();
+    }
+    
+    /**
+     * <p>Visits, in ascending order, up to limit keys between from and to. Finding the first key costs
+     * O(height) and every following key O(1) amortized, so a scan costs O(height + limit) whatever the size
+     * of the range. Long scans can be done in slices, resuming each one from the last key visited with
+     * fromInclusive set to {@code false}.</p>
+     * @param from The lower bound of the range, or {@code null} to start at the smallest key.
+     * @param fromInclusive Whether a key equal to from is visited.
+     * @param to The upper bound of the range, or {@code null} to run to the largest key.
+     * @param toInclusive Whether a key equal to to is visited.
+     * @param limit The maximum number of keys to visit.
+     * @param action What to do with each key.
+     * @return The number of keys visited.
+     */
+    public int scan(T from, boolean fromInclusive, T to, boolean toInclusive, int limit, Consumer<? super T> action) {
+    	ArrayDeque<TreeNode> stack = new ArrayDeque<>();
+    	pushLowerBound(stack, from, fromInclusive);
+    	int visited = 0;
+    	while (visited < limit && !stack.isEmpty()) {
+    		TreeNode curr = stack.pop();
+    		if (to != null) {
+    			int cmp = curr.data.compareTo(to);
+    			if (cmp > 0 || (cmp == 0 && !toInclusive))
+    				break;
+    		}
+    		action.accept(curr.data);
+    		visited++;
+    		pushLeftSpine(stack, curr.rChild);
+    	}
+    	return visited;
+    }
+    
+    /**
+     * <p>A finger into the tree: a remembered position from which nearby keys are found without going
+     * through the root. Seeking, inserting and deleting from a cursor only search the subtree next to
+     * the cursor that holds the target, which takes O(log d) comparisons for keys d positions apart.
+     * Finding that subtree follows parent links up, and can still take O(height) of them when the two
+     * keys sit on either side of a much higher ancestor, such as the root. Rebalancing after an insertion
+     * or deletion also works upwards from the change and usually stops well short of the root. Stepping
+     * with {@link #next()} and {@link #prev()} costs O(1) amortized.</p>
+     *
+     * <p>Rotations relink nodes without moving keys, and deletions relink the successor node into
+     * the place of the node removed, so a cursor stays on its key whatever else happens to the tree.
+     * If its own key is deleted through another cursor or {@link AVLGTree#delete(Comparable)}, the
+     * cursor moves on to the next key, looked up from the root. After {@link AVLGTree#clear()} a
+     * cursor is off the tree. A cursor that has run off either end stays off until the next
+     * {@link #seek(Comparable)} or {@link #insert(Comparable)}.</p>
+     *
+     * <p>Cursors are not thread-safe, and neither is the tree.</p>
+     * @see AVLGTree#cursor()
+     */
+    public final class Cursor {
+    	private TreeNode node;
+    	private T key; // key of node, to notice node being removed and reused
+    	private int seenEpoch;
+    	
+    	private Cursor() {
+    		seenEpoch = epoch;
+    	}
+    	
+    	/* resync():
+    	 * Moves the cursor to the next key if its node has left the tree
+    	 */
+    	private void resync() {
+    		if (seenEpoch != epoch) {
+    			seenEpoch = epoch;
+    			moveTo(null);
+    		} else if (node != null && (node.height == REMOVED || node.data != key)) {
+    			TreeNode at = fingerSearch(null, key);
+    			moveTo(at != null && at.data.compareTo(key) < 0 ? successor(at) : at);
+    		}
+    	}
+    	
+    	private T moveTo(TreeNode to) {
+    		node = to;
+    		key = to == null ? null : to.data;
+    		return key;
+    	}
+    	
+    	/**
+    	 * @return The key under the cursor, or {@code null} if the cursor is off the tree.
+    	 */
+    	public T get() {
+    		resync();
+    		return key;
+    	}
+    	
+    	/**
+    	 * Moves the cursor to key if it is in the tree, or else to the smallest key after it.
+    	 * @param key The key to look for.
+    	 * @return {@code true} if key is in the tree, {@code false} otherwise.
+    	 */
+    	public boolean seek(T key) {
+    		resync();
+    		TreeNode at = fingerSearch(node, key);
+    		if (at == null)
+    			return false;
+    		int cmp = key.compareTo(at.data);
+    		moveTo(cmp > 0 ? successor(at) : at);
+    		return cmp == 0;
+    	}
+    	
+    	/**
+    	 * Moves the cursor to the next key in order.
+    	 * @return The new key under the cursor, or {@code null} if the cursor ran off the end.
+    	 */
+    	public T next() {
+    		resync();
+    		return node == null ? null : moveTo(successor(node));
+    	}
+    	
+    	/**
+    	 * Moves the cursor to the previous key in order.
+    	 * @return The new key under the cursor, or {@code null} if the cursor ran off the start.
+    	 */
+    	public T prev() {
+    		resync();
+    		return node == null ? null : moveTo(predecessor(node));
+    	}
+    	
+    	/**
+    	 * Inserts key, starting from the cursor, and moves the cursor to it. Otherwise the same as
+    	 * {@link AVLGTree#insert(Comparable)}.
+    	 * @param key The key to insert in the tree.
+    	 */
+    	public void insert(T key) {
+    		resync();
+    		moveTo(insertAt(node, key));
+    	}
+    	
+    	/**
+    	 * Deletes the key under the cursor, or one occurrence of it in a multiset. Once no occurrence is
+    	 * left, the cursor moves to the next key.
+    	 * @return The key deleted, or {@code null} if the cursor is off the tree.
+    	 */
+    	public T delete() {
+    		resync();
+    		if (node == null)
+    			return null;
+    		T removed = key;
+    		total--;
+    		if (node.count > 1) {
+    			node.count--;
+    			return removed;
+    		}
+    		TreeNode next = successor(node);
+    		removeNode(node);
+    		moveTo(next);
+    		return removed;
+    	}
+    }
+    
+    /**
+     * Creates a cursor that is off the tree; its first {@link Cursor#seek(Comparable)} starts from the root.
+     * @return A new cursor.
+     */
+    public Cursor cursor() {
+    	return new Cursor();
+    }
+    
+    /**
+     * Creates a cursor on key, or on the smallest key after it if key is not in the tree.
+     * @param key Where to put the cursor.
+     * @return A new cursor.
+     */
+    public Cursor cursor(T key) {
+    	Cursor cursor = new Cursor();
+    	cursor.seek(key);
+    	return cursor;
+    }
+    
+    /**
+     * <p>Builds a tree out of count keys supplied in strictly ascending order, in O(count) time and without
+     * any rotation. The result is as balanced as a binary tree can be.</p>
+     * @param maxImbalance The maximum imbalance of the new tree.
+     * @param sorted The keys, in strictly ascending order. Exactly count of them are consumed.
+     * @param count The number of keys to take from sorted.
+     * @param <T> The type of key stored in the tree.
+     * @return The new tree.
+     * @throws InvalidBalanceException if maxImbalance is smaller than 1.
+     * @throws IllegalArgumentException if the keys are not strictly ascending, or there are fewer than count.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> fromSorted(int maxImbalance, Iterator<? extends T> sorted,
+    		int count) throws InvalidBalanceException {
+    	AVLGTree<T> tree = new AVLGTree<>(maxImbalance);
+    	try {
+    		tree.root = tree.new SortedLoader(sorted).build(count);
+    	} catch (IOException e) {
+    		throw new IllegalArgumentException(e.getMessage());
+    	}
+    	tree.size = count;
+    	tree.total = count;
+    	return tree;
+    }
+    
+    /**
+     * <p>Writes the tree to channel in a compact, versioned format: a short header holding the maximum
+     * imbalance and the number of keys, followed by every key in ascending order as encoded by codec, each
+     * followed by its count if the tree is a multiset. The tree is written in a single pass through one
+     * reusable buffer. The channel is not closed.</p>
+     * @param channel The channel to write to.
+     * @param codec The codec used for every key.
+     * @throws IOException if the channel cannot be written to.
+     * @throws IllegalArgumentException if codec's id is not between 0 and 255.
+     * @see #load(ReadableByteChannel, KeyCodec)
+     */
+    public void save(WritableByteChannel channel, KeyCodec<T> codec) throws IOException {
+    	int codecId = KeyCodecs.idOf(codec);
+    	ChannelOutput out = new ChannelOutput(channel);
+    	out.writeInt(FORMAT_MAGIC);
+    	out.writeByte(FORMAT_VERSION);
+    	out.writeByte(codecId);
+    	out.writeByte(multiset ? FLAG_MULTISET : 0);
+    	out.writeVarLong(maxImbalance);
+    	out.writeVarLong(size);
+    	writeSorted(out, codec);
+    	out.flush();
+    }
+    
+    /**
+     * Writes the tree to a file, replacing whatever was there.
+     * @param file The file to write to.
+     * @param codec The codec used for every key.
+     * @throws IOException if the file cannot be written to.
+     * @throws IllegalArgumentException if codec's id is not between 0 and 255; the file is left untouched.
+     * @see #save(WritableByteChannel, KeyCodec)
+     */
+    public void save(Path file, KeyCodec<T> codec) throws IOException {
+    	KeyCodecs.idOf(codec);
+    	try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+    			StandardOpenOption.TRUNCATE_EXISTING)) {
+    		save(channel, codec);
+    	}
+    }
+    
+    /**
+     * <p>Reads back a tree written by {@link #save(WritableByteChannel, KeyCodec)}. Because the keys are
+     * stored in order, the tree is rebuilt directly in O(n) time instead of through n insertions, and the
+     * result is as balanced as a binary tree can be. The channel is not closed.</p>
+     * @param channel The channel to read from.
+     * @param codec The codec the tree was saved with.
+     * @param <T> The type of key stored in the tree.
+     * @return The tree that was saved.
+     * @throws TreeFormatException if the data is not a saved tree, was saved with a different codec, or is
+     * truncated or corrupt.
+     * @throws IOException if the channel cannot be read from.
+     * @throws IllegalArgumentException if codec's id is not between 0 and 255.
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> load(ReadableByteChannel channel, KeyCodec<T> codec)
+    		throws IOException {
+    	int expectedId = KeyCodecs.idOf(codec);
+    	ChannelInput in = new ChannelInput(channel);
+    	try {
+	    	if (in.readInt() != FORMAT_MAGIC)
+	    		throw new TreeFormatException("Not a saved AVL-G tree.");
+	    	int version = in.readByte();
+	    	if (version != FORMAT_VERSION)
+	    		throw new TreeFormatException("Unsupported format version " + version + ".");
+	    	int codecId = in.readByte();
+	    	if (codecId != expectedId)
+	    		throw new TreeFormatException("Tree was saved with codec " + codecId + ", not " + expectedId + ".");
+	    	int flags = in.readByte();
+	    	if ((flags & ~FLAG_MULTISET) != 0)
+	    		throw new TreeFormatException("Unknown format flags " + flags + ".");
+	    	long maxImbalance = in.readVarLong();
+	    	long count = in.readVarLong();
+	    	if (maxImbalance < 1 || maxImbalance > Integer.MAX_VALUE || count < 0 || count > Integer.MAX_VALUE)
+	    		throw new TreeFormatException("Corrupt tree header.");
+	    	boolean multiset = (flags & FLAG_MULTISET) != 0;
+	    	AVLGTree<T> tree = new AVLGTree<>((int) maxImbalance, multiset);
+	    	AVLGTree<T>.SortedLoader loader = tree.new SortedLoader(in, codec, multiset);
+	    	tree.root = loader.build((int) count);
+	    	tree.size = (int) count;
+	    	tree.total = loader.occurrences;
+	    	return tree;
+    	} catch (EOFException e) {
+    		throw new TreeFormatException("Saved tree is truncated.");
+    	} catch (InvalidBalanceException e) {
+    		throw new TreeFormatException(e.getMessage()); // ruled out by the header check above
+    	}
+    }
+    
+    /**
+     * Reads back a tree written by {@link #save(Path, KeyCodec)}.
+     * @param file The file to read from.
+     * @param codec The codec the tree was saved with.
+     * @param <T> The type of key stored in the tree.
+     * @return The tree that was saved.
+     * @throws IOException if the file cannot be read, or does not hold a well-formed tree.
+     * @see #load(ReadableByteChannel, KeyCodec)
+     */
+    public static <T extends Comparable<T>> AVLGTree<T> load(Path file, KeyCodec<T> codec) throws IOException {
+    	try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+    		return load(channel, codec);
+    	}
+    }
 
     /* testBSTProperty(T[] a):
      *  To test isBST()
@@ -0,0 +1,331 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>{@link AVLGTreeIngestor} lets many threads update an {@link AVLGTree} without ever locking it. Producer
+ * threads enqueue operations into a bounded, lock-free queue and get a {@link CompletableFuture} back. A
+ * single owner thread drains the queue in batches, sorts every batch by key and applies it, so the tree is
+ * only ever touched by one thread and each batch walks it roughly left to right.</p>
+ *
+ * <p>Every operation completes exactly as if all of them had been applied one at a time, in the order they
+ * were enqueued; in particular, each producer sees its own operations take effect in order. Sorting is
+ * stable, so operations on the same key keep their order, and operations on different keys only depend on
+ * each other through whether the tree is empty. A batch is therefore only sorted when the tree holds more
+ * keys than the batch deletes, so it cannot run empty; otherwise it is applied in the order it was
+ * enqueued. When the queue is full, producers wait until the owner catches up, so the queue capacity bounds
+ * how far ahead of the tree producers can run.</p>
+ *
+ * <p>The owner thread comes from the {@link ThreadFactory} given to the constructor, so it can be a
+ * platform thread or, on Java 21 and later, a virtual one ({@code Thread.ofVirtual().factory()}). Once the
+ * ingestor is handed a tree, nothing else may use that tree until {@link #close()} returns.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTree
+ */
+public class AVLGTreeIngestor<T extends Comparable<T>> implements AutoCloseable {
+
+	private static final int INSERT = 0;
+	private static final int DELETE = 1;
+	private static final int SEARCH = 2;
+
+	/* Batch:
+	 * Shared completion of all the keys enqueued by one insertAll(..)
+	 *
+	 * Other notes:
+	 * Only touched by the owner thread once enqueued.
+	 */
+	private static final class Batch {
+		private final CompletableFuture<Void> future = new CompletableFuture<>();
+		private int remaining;
+	}
+
+	/* Op:
+	 * One queued operation
+	 *
+	 * Other notes:
+	 * Exactly one of future and batch is set.
+	 */
+	private static final class Op<T> {
+		private final int kind;
+		private final T key;
+		private final CompletableFuture<Object> future;
+		private final Batch batch;
+
+		private Op(int kind, T key, CompletableFuture<Object> future, Batch batch) {
+			this.kind = kind;
+			this.key = key;
+			this.future = future;
+			this.batch = batch;
+		}
+	}
+
+	private final AVLGTree<T> tree;
+	private final BoundedMpscQueue<Op<T>> queue;
+	private final Op<T>[] drained;
+	private final Op<T>[] sorted;
+	private final Comparator<Op<T>> byKey = (a, b) -> a.key.compareTo(b.key);
+	private final Thread owner;
+	private final AtomicInteger enqueuing = new AtomicInteger();
+	private volatile boolean sleeping;
+	private volatile boolean closed;
+
+	/**
+	 * <p>Starts the owner thread.</p>
+	 * @param tree The tree to update. It must not be used by anyone else until {@link #close()} returns.
+	 * @param queueCapacity How many operations can be waiting at once.
+	 * @param maxBatch The maximum number of operations sorted and applied together.
+	 * @param threadFactory Creates the owner thread.
+	 */
+	@SuppressWarnings("unchecked")
+	public AVLGTreeIngestor(AVLGTree<T> tree, int queueCapacity, int maxBatch, ThreadFactory threadFactory) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("Batches must hold at least one operation.");
+		this.tree = tree;
+		this.queue = new BoundedMpscQueue<>(queueCapacity);
+		this.drained = (Op<T>[]) new Op<?>[maxBatch];
+		this.sorted = (Op<T>[]) new Op<?>[maxBatch];
+		this.owner = threadFactory.newThread(this::run);
+		owner.start();
+	}
+
+	/* enqueue(Op<T> op):
+	 * Hands op to the owner thread, waiting for room if the queue is full
+	 *
+	 * Other notes:
+	 * enqueuing is raised before closed is checked, and the owner only exits once it is back to zero,
+	 * so an operation that gets past the check is always applied.
+	 */
+	private void enqueue(Op<T> op) {
+		enqueuing.incrementAndGet();
+		try {
+			if (closed)
+				throw new RejectedExecutionException("Ingestor has been closed.");
+			int spins = 0;
+			while (!queue.offer(op)) {
+				if (++spins < 64)
+					Thread.onSpinWait();
+				else
+					LockSupport.parkNanos(1000L);
+			}
+		} finally {
+			enqueuing.decrementAndGet();
+		}
+		if (sleeping)
+			LockSupport.unpark(owner);
+	}
+
+	/* checkKey(T key):
+	 * Refuses a null key on the producer's side, before it can reach the owner thread
+	 */
+	private static void checkKey(Object key) {
+		if (key == null)
+			throw new NullPointerException("Key must not be null.");
+	}
+
+	@SuppressWarnings("unchecked")
+	private <R> CompletableFuture<R> submit(int kind, T key) {
+		checkKey(key);
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		enqueue(new Op<>(kind, key, future, null));
+		return (CompletableFuture<R>) future;
+	}
+
+	/**
+	 * Enqueues the insertion of key.
+	 * @param key The key to insert.
+	 * @return Completes with {@code true} if key was added, or counted once more in a multiset, and
+	 * {@code false} if it was already there.
+	 * @throws NullPointerException if key is null.
+	 * @throws RejectedExecutionException if the ingestor has been closed.
+	 */
+	public CompletableFuture<Boolean> insert(T key) {
+		return submit(INSERT, key);
+	}
+
+	/**
+	 * <p>Enqueues the insertion of every key in keys, with a single future for all of them. This saves
+	 * one future per key when producers only care about the batch as a whole.</p>
+	 * @param keys The keys to insert.
+	 * @return Completes once every key has been inserted.
+	 * @throws NullPointerException if any of keys is null, in which case none of them is enqueued.
+	 * @throws RejectedExecutionException if the ingestor has been closed.
+	 */
+	public CompletableFuture<Void> insertAll(Collection<? extends T> keys) {
+		for (T key : keys)
+			checkKey(key);
+		Batch batch = new Batch();
+		batch.remaining = keys.size();
+		if (keys.isEmpty())
+			batch.future.complete(null);
+		for (T key : keys)
+			enqueue(new Op<>(INSERT, key, null, batch));
+		return batch.future;
+	}
+
+	/**
+	 * Enqueues the deletion of key.
+	 * @param key The key to delete.
+	 * @return Completes with the key removed, or {@code null} if it was not found, or exceptionally with
+	 * an {@link EmptyTreeException} if the tree was empty.
+	 * @throws NullPointerException if key is null.
+	 * @throws RejectedExecutionException if the ingestor has been closed.
+	 */
+	public CompletableFuture<T> delete(T key) {
+		return submit(DELETE, key);
+	}
+
+	/**
+	 * Enqueues a search for key, ordered with the updates around it.
+	 * @param key The key to search for.
+	 * @return Completes with key if it is in the tree, or {@code null} otherwise, or exceptionally with
+	 * an {@link EmptyTreeException} if the tree was empty.
+	 * @throws NullPointerException if key is null.
+	 * @throws RejectedExecutionException if the ingestor has been closed.
+	 */
+	public CompletableFuture<T> search(T key) {
+		return submit(SEARCH, key);
+	}
+
+	/* run():
+	 * Owner thread loop: drain, sort, apply, repeat
+	 *
+	 * Other notes:
+	 * Parks when the queue is empty. sleeping is set before the queue is checked again, and producers
+	 * check sleeping after publishing, so a wake-up is never lost. Exits once closed and fully drained.
+	 * Whatever an operation throws only fails that operation, so the owner keeps going and every future
+	 * gets completed.
+	 */
+	private void run() {
+		while (true) {
+			int n = 0;
+			Op<T> op;
+			while (n < drained.length && (op = queue.poll()) != null)
+				drained[n++] = op;
+			if (n > 0) {
+				Op<T>[] batch = sort(n) ? sorted : drained;
+				for (int i = 0; i < n; i++) {
+					try {
+						apply(batch[i]);
+					} catch (Throwable t) {
+						complete(batch[i], null, t);
+					}
+				}
+				Arrays.fill(drained, 0, n, null);
+				Arrays.fill(sorted, 0, n, null);
+				continue;
+			}
+			if (closed) {
+				if (enqueuing.get() == 0 && queue.isEmpty())
+					return;
+				Thread.onSpinWait(); // a producer is still on its way in
+				continue;
+			}
+			sleeping = true;
+			if (queue.isEmpty() && !closed)
+				LockSupport.park(this);
+			sleeping = false;
+		}
+	}
+
+	/* sort(int n):
+	 * Copies the first n drained operations into sorted, in key order, if that cannot change any outcome
+	 *
+	 * Other notes:
+	 * Returns false, leaving the batch to be applied as it came, if the batch deletes as many keys as the
+	 * tree holds, since then it matters which keys come before the tree runs empty. Also returns false if
+	 * the keys cannot be compared; the operation at fault then fails on its own when applied. drained is
+	 * left as it was either way, as a failed sort may have scrambled its copy.
+	 */
+	private boolean sort(int n) {
+		int deletes = 0;
+		for (int i = 0; i < n; i++) {
+			if (drained[i].kind == DELETE)
+				deletes++;
+		}
+		if (tree.getCount() <= deletes)
+			return false;
+		System.arraycopy(drained, 0, sorted, 0, n);
+		try {
+			Arrays.sort(sorted, 0, n, byKey);
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/* apply(Op<T> op):
+	 * Runs one operation against the tree and completes its future
+	 */
+	private void apply(Op<T> op) {
+		Object result = null;
+		Throwable failure = null;
+		try {
+			switch (op.kind) {
+			case INSERT:
+				long before = tree.getTotalCount();
+				tree.insert(op.key);
+				result = tree.getTotalCount() != before;
+				break;
+			case DELETE:
+				result = tree.delete(op.key);
+				break;
+			default:
+				result = tree.search(op.key);
+				break;
+			}
+		} catch (EmptyTreeException | RuntimeException e) {
+			failure = e;
+		}
+		complete(op, result, failure);
+	}
+
+	/* complete(Op<T> op, Object result, Throwable failure):
+	 * Completes the future of op, or counts op towards its batch
+	 *
+	 * Other notes:
+	 * A batch fails as soon as one of its keys does.
+	 */
+	private void complete(Op<T> op, Object result, Throwable failure) {
+		if (op.batch != null) {
+			if (failure != null)
+				op.batch.future.completeExceptionally(failure);
+			else if (--op.batch.remaining == 0)
+				op.batch.future.complete(null);
+		} else if (failure != null) {
+			op.future.completeExceptionally(failure);
+		} else {
+			op.future.complete(result);
+		}
+	}
+
+	/**
+	 * <p>Stops accepting operations, waits for the owner thread to apply everything already enqueued, and
+	 * stops it. The tree may be used directly again afterwards. If the calling thread is interrupted while
+	 * waiting, it keeps waiting and its interrupt status is restored on return.</p>
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(owner);
+		boolean interrupted = false;
+		while (owner.isAlive()) {
+			try {
+				owner.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,229 @@
+package avlg;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * <p>{@link AVLGTreePublisher} exposes a scan of an {@link AVLGTree}, over the whole tree or over a range of
+ * keys, as a {@link Flow.Publisher} with demand-driven back-pressure. Subscribers are fed on an
+ * {@link Executor}, never on the thread that calls {@link Flow.Subscription#request(long)}, so an event loop
+ * can subscribe to huge scans without ever blocking on the tree.</p>
+ *
+ * <p>Keys are read in slices of at most {@code sliceSize} keys and never more than the subscriber asked
+ * for. Each slice is read with {@link AVLGTree#scan} under the given lock, which is released before the
+ * keys are delivered. The next slice resumes after the last key delivered. The tree is therefore never
+ * held locked between slices, and at most one slice is held in memory per subscriber. Like any slice-wise
+ * scan, a subscription reflects some, but not necessarily all, of the updates made while it runs.</p>
+ *
+ * <p>Every subscriber gets a scan of its own, starting from the beginning of the range.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTree#scan(Comparable, boolean, Comparable, boolean, int, java.util.function.Consumer)
+ */
+public class AVLGTreePublisher<T extends Comparable<T>> implements Flow.Publisher<T> {
+
+	/** Default maximum number of keys read per slice. */
+	public static final int DEFAULT_SLICE_SIZE = 256;
+
+	private final AVLGTree<T> tree;
+	private final Lock lock;
+	private final T from;
+	private final boolean fromInclusive;
+	private final T to;
+	private final boolean toInclusive;
+	private final Executor executor;
+	private final int sliceSize;
+
+	/**
+	 * <p>Creates a publisher of the keys between from and to.</p>
+	 * @param tree The tree to scan.
+	 * @param lock The lock guarding the tree against writers, or {@code null} if it is never updated
+	 * during the scan.
+	 * @param from The lower bound of the range, or {@code null} to start at the smallest key.
+	 * @param fromInclusive Whether a key equal to from is published.
+	 * @param to The upper bound of the range, or {@code null} to run to the largest key.
+	 * @param toInclusive Whether a key equal to to is published.
+	 * @param executor Where subscribers are called.
+	 * @param sliceSize The maximum number of keys read under the lock at once.
+	 */
+	public AVLGTreePublisher(AVLGTree<T> tree, Lock lock, T from, boolean fromInclusive, T to, boolean toInclusive,
+			Executor executor, int sliceSize) {
+		if (sliceSize < 1)
+			throw new IllegalArgumentException("Slices must hold at least one key.");
+		this.tree = tree;
+		this.lock = lock;
+		this.from = from;
+		this.fromInclusive = fromInclusive;
+		this.to = to;
+		this.toInclusive = toInclusive;
+		this.executor = executor;
+		this.sliceSize = sliceSize;
+	}
+
+	/**
+	 * Publishes every key of the tree, in ascending order, on the common fork-join pool.
+	 * @param tree The tree to scan.
+	 * @param lock The lock guarding the tree against writers, or {@code null}.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The publisher.
+	 */
+	public static <T extends Comparable<T>> AVLGTreePublisher<T> scan(AVLGTree<T> tree, Lock lock) {
+		return new AVLGTreePublisher<>(tree, lock, null, true, null, true, ForkJoinPool.commonPool(),
+				DEFAULT_SLICE_SIZE);
+	}
+
+	/**
+	 * Publishes every key between lo and hi, both included, in ascending order, on the common fork-join pool.
+	 * @param tree The tree to scan.
+	 * @param lock The lock guarding the tree against writers, or {@code null}.
+	 * @param lo The smallest key of the range.
+	 * @param hi The largest key of the range.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The publisher.
+	 */
+	public static <T extends Comparable<T>> AVLGTreePublisher<T> range(AVLGTree<T> tree, Lock lock, T lo, T hi) {
+		return new AVLGTreePublisher<>(tree, lock, lo, true, hi, true, ForkJoinPool.commonPool(),
+				DEFAULT_SLICE_SIZE);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super T> subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("Subscriber must not be null.");
+		ScanSubscription subscription = new ScanSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	/* ScanSubscription:
+	 * One subscriber's scan
+	 *
+	 * Other notes:
+	 * All signals are sent from drain(), which the work-in-progress counter guarantees is never running
+	 * twice at once, so the cursor and the slice need no further synchronization.
+	 */
+	private final class ScanSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final ArrayList<T> slice = new ArrayList<>();
+		private volatile boolean cancelled;
+		private int position;
+		private T cursor;
+		private boolean cursorInclusive;
+		private boolean exhausted;
+		private Throwable badRequest;
+
+		private ScanSubscription(Flow.Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+			this.cursor = from;
+			this.cursorInclusive = fromInclusive;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				badRequest = new IllegalArgumentException("Subscribers must request a positive number of keys.");
+			else
+				requested.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+		}
+
+		private void schedule() {
+			if (wip.getAndIncrement() == 0)
+				executor.execute(this::drain);
+		}
+
+		/* fill(long max):
+		 * Reads the next slice of at most max keys, under the lock
+		 *
+		 * Other notes:
+		 * Marks the scan exhausted when the slice comes back short.
+		 */
+		private void fill(long max) {
+			slice.clear();
+			position = 0;
+			int limit = (int) Math.min(max, sliceSize);
+			if (lock != null)
+				lock.lock();
+			try {
+				tree.scan(cursor, cursorInclusive, to, toInclusive, limit, slice::add);
+			} finally {
+				if (lock != null)
+					lock.unlock();
+			}
+			if (slice.size() < limit)
+				exhausted = true;
+			if (!slice.isEmpty()) {
+				cursor = slice.get(slice.size() - 1);
+				cursorInclusive = false;
+			}
+		}
+
+		/* drain():
+		 * Delivers as many keys as requested, then completes once the range is exhausted
+		 *
+		 * Other notes:
+		 * Only a failed scan is sent to onError. If onNext throws, the subscription counts as cancelled and
+		 * the subscriber gets no further signals, as the Reactive Streams rules ask.
+		 */
+		private void drain() {
+			int missed = 1;
+			do {
+				if (cancelled)
+					return;
+				if (badRequest != null) {
+					cancelled = true;
+					subscriber.onError(badRequest);
+					return;
+				}
+				long demand = requested.get();
+				long emitted = 0;
+				while (emitted < demand && !cancelled) {
+					if (position == slice.size()) {
+						if (exhausted)
+							break;
+						try {
+							fill(demand - emitted);
+						} catch (Throwable t) {
+							cancelled = true;
+							slice.clear();
+							subscriber.onError(t);
+							return;
+						}
+						if (slice.isEmpty())
+							break;
+					}
+					T key = slice.get(position);
+					slice.set(position++, null);
+					try {
+						subscriber.onNext(key);
+					} catch (Throwable t) {
+						cancelled = true;
+						slice.clear();
+						return;
+					}
+					emitted++;
+				}
+				if (!cancelled && exhausted && position == slice.size()) {
+					cancelled = true;
+					slice.clear();
+					subscriber.onComplete();
+					return;
+				}
+				if (emitted > 0 && demand != Long.MAX_VALUE)
+					requested.addAndGet(-emitted);
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package avlg;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import avlg.StorageIO.ByteSink;
+
+/**
+ * <p>{@link AVLGTreeRecorder} captures the calls made to an {@link AVLGTree} as a compact binary trace, for
+ * {@link AVLGTreeReplay} to run again later against trees with other maximum imbalances. Attach it with
+ * {@link AVLGTree#setRecorder(AVLGTreeRecorder)}; from then on, every {@link AVLGTree#insert(Comparable)},
+ * {@link AVLGTree#delete(Comparable)}, {@link AVLGTree#search(Comparable)},
+ * {@link AVLGTree#contains(Comparable)} and {@link AVLGTree#clear()} is recorded, in call order.</p>
+ *
+ * <p>A record is one operation byte followed by the key as written by a {@link KeyCodec}, so a trace of
+ * small integer keys takes two or three bytes per call. Records go into a {@link ChannelOutput} buffer and
+ * reach the channel in 64 KiB writes, so recording costs an uncontended lock and a few bytes of copying per
+ * call. Recording never makes the tree fail: if the channel cannot be written to or the codec cannot encode a
+ * key, the recorder stops, and the error is thrown by {@link #close()}. Calls with a {@code null} key are
+ * not recorded, since the tree rejects them.</p>
+ *
+ * <p>The trace notes whether it was recorded from a multiset, so that it is replayed against one. Calls made
+ * through cursors, augmented trees' own methods and {@link AVLGTree#count(Comparable)} are not
+ * recorded. All methods are thread-safe, so a recorder can be shared by readers holding a read lock.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTreeReplay
+ */
+public class AVLGTreeRecorder<T> implements AutoCloseable {
+
+	/* Trace format:
+	 * magic, version, codec id, flags (FLAG_MULTISET), then one record per call: an op byte, followed by the key for every op but
+	 * OP_CLEAR. Keys are encoded without a previous key, since consecutive calls are rarely close together.
+	 */
+	static final int TRACE_MAGIC = 0x41564C54; // "AVLT"
+	static final int TRACE_VERSION = 1;
+	static final int FLAG_MULTISET = 1;
+	static final int OP_INSERT = 1;
+	static final int OP_DELETE = 2;
+	static final int OP_SEARCH = 3;
+	static final int OP_CLEAR = 4;
+
+	private final WritableByteChannel channel;
+	private final boolean ownsChannel;
+	private final KeyCodec<T> codec;
+	private final boolean multiset;
+	private final ChannelOutput out;
+	private final ByteSink record = new ByteSink();
+	private final ChannelOutput recordOut = new ChannelOutput(record, 256);
+	private long records;
+	private IOException failure;
+	private boolean closed;
+
+	private AVLGTreeRecorder(WritableByteChannel channel, boolean ownsChannel, KeyCodec<T> codec,
+			boolean multiset) throws IOException {
+		int codecId = KeyCodecs.idOf(codec);
+		this.channel = channel;
+		this.ownsChannel = ownsChannel;
+		this.codec = codec;
+		this.multiset = multiset;
+		this.out = new ChannelOutput(channel);
+		out.writeInt(TRACE_MAGIC);
+		out.writeByte(TRACE_VERSION);
+		out.writeByte(codecId);
+		out.writeByte(multiset ? FLAG_MULTISET : 0);
+	}
+
+	/**
+	 * Starts a trace of a tree that is not a multiset on channel, which is left open by {@link #close()}.
+	 * @param channel Where to write the trace.
+	 * @param codec How to write keys.
+	 * @throws IOException if the header cannot be written.
+	 */
+	public AVLGTreeRecorder(WritableByteChannel channel, KeyCodec<T> codec) throws IOException {
+		this(channel, false, codec, false);
+	}
+
+	/**
+	 * Starts a trace on channel, which is left open by {@link #close()}.
+	 * @param channel Where to write the trace.
+	 * @param codec How to write keys.
+	 * @param multiset Whether the tree recorded is a multiset.
+	 * @throws IOException if the header cannot be written.
+	 */
+	public AVLGTreeRecorder(WritableByteChannel channel, KeyCodec<T> codec, boolean multiset) throws IOException {
+		this(channel, false, codec, multiset);
+	}
+
+	/**
+	 * Starts a trace of a tree that is not a multiset in file, replacing whatever was there. The file is
+	 * closed by {@link #close()}.
+	 * @param file Where to write the trace.
+	 * @param codec How to write keys.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The recorder.
+	 * @throws IOException if the file cannot be written to.
+	 */
+	public static <T> AVLGTreeRecorder<T> open(Path file, KeyCodec<T> codec) throws IOException {
+		return open(file, codec, false);
+	}
+
+	/**
+	 * Starts a trace in file, replacing whatever was there. The file is closed by {@link #close()}.
+	 * @param file Where to write the trace.
+	 * @param codec How to write keys.
+	 * @param multiset Whether the tree recorded is a multiset.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The recorder.
+	 * @throws IOException if the file cannot be written to.
+	 */
+	public static <T> AVLGTreeRecorder<T> open(Path file, KeyCodec<T> codec, boolean multiset) throws IOException {
+		KeyCodecs.idOf(codec); // before the file is truncated
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			return new AVLGTreeRecorder<>(channel, true, codec, multiset);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/* record(int op, T key):
+	 * Appends one record, unless the recorder has failed or been closed, or key is null where one is needed
+	 *
+	 * Other notes:
+	 * Keeps the first failure for close() to throw, and records nothing after it. The record is encoded on its
+	 * own first and only copied into the trace once whole, so a key the codec rejects never leaves a bare op
+	 * byte that replay would read the next record into.
+	 */
+	private synchronized void record(int op, T key) {
+		if (closed || failure != null || (op != OP_CLEAR && key == null))
+			return;
+		try {
+			try {
+				recordOut.writeByte(op);
+				if (op != OP_CLEAR)
+					codec.encode(key, null, recordOut);
+			} finally {
+				recordOut.flush(); // a failed record is flushed too, then dropped below
+			}
+			out.writeBytes(record.bytes.array(), 0, record.bytes.position());
+			records++;
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new IOException("Key " + key + " could not be recorded.", e);
+		} finally {
+			record.bytes.clear();
+		}
+	}
+
+	/**
+	 * @return {@code true} if the trace is of a multiset.
+	 */
+	public boolean isMultiset() {
+		return multiset;
+	}
+
+	void insert(T key) {
+		record(OP_INSERT, key);
+	}
+
+	void delete(T key) {
+		record(OP_DELETE, key);
+	}
+
+	void search(T key) {
+		record(OP_SEARCH, key);
+	}
+
+	void clear() {
+		record(OP_CLEAR, null);
+	}
+
+	/**
+	 * @return How many calls have been recorded so far.
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Writes out every record buffered so far.
+	 * @throws IOException if recording has failed, or the channel cannot be written to.
+	 */
+	public synchronized void flush() throws IOException {
+		if (failure != null)
+			throw failure;
+		if (!closed)
+			out.flush();
+	}
+
+	/**
+	 * <p>Writes out every record buffered so far and stops recording. Calls made afterwards are ignored.</p>
+	 * @throws IOException if recording has failed at any point, or the channel cannot be written to.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			flush();
+		} finally {
+			closed = true;
+			if (ownsChannel)
+				channel.close();
+		}
+	}
+}
@@ -0,0 +1,377 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import avlg.exceptions.TreeFormatException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <p>{@link AVLGTreeReplay} runs a trace written by an {@link AVLGTreeRecorder} against fresh trees, one
+ * maximum imbalance at a time, to pick the G that suits a real workload best. The whole trace is decoded
+ * into memory first, so replays measure the tree and not the decoder.</p>
+ *
+ * <p>Every {@link #run(int)} replays the trace twice on a new tree. The first pass is untimed per call and
+ * gives throughput, rotation count and final shape. The second one times every call with
+ * {@link System#nanoTime()} into a log-linear histogram, from which latency percentiles are read. Timing
+ * each call costs tens of nanoseconds, which is why throughput comes from the first pass only. Searches and
+ * deletes on an empty tree are replayed as the no-ops they were.</p>
+ *
+ * <p>Traces are replayed against a plain {@link AVLGTree}, a multiset if the trace was recorded from one.
+ * A trace recorded from a subclass, such as an augmented or interval tree, thus measures the balancing of
+ * the base tree only, without the upkeep the subclass adds to every rotation.</p>
+ *
+ * <p>{@link #main(String[])} replays a trace file at several imbalances and prints one row per imbalance:</p>
+ * <pre>java avlg.AVLGTreeReplay trace.bin 1 2 3 4 5</pre>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTreeRecorder
+ */
+public class AVLGTreeReplay<T extends Comparable<T>> {
+
+	/* Histogram layout:
+	 * latencies below 2^SUB_BITS ns get a bucket each; above that, every power of two is split into 2^SUB_BITS
+	 * equal buckets, so a bucket is never wider than 1/32 of the values it holds.
+	 */
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	/**
+	 * What one replay measured.
+	 */
+	public static final class Result {
+		private final int maxImbalance;
+		private final int operations;
+		private final long nanos;
+		private final long rotations;
+		private final int height;
+		private final int count;
+		private final long[] histogram;
+
+		private Result(int maxImbalance, int operations, long nanos, long rotations, int height, int count,
+				long[] histogram) {
+			this.maxImbalance = maxImbalance;
+			this.operations = operations;
+			this.nanos = nanos;
+			this.rotations = rotations;
+			this.height = height;
+			this.count = count;
+			this.histogram = histogram;
+		}
+
+		/**
+		 * @return The maximum imbalance the trace was replayed with.
+		 */
+		public int getMaxImbalance() {
+			return maxImbalance;
+		}
+
+		/**
+		 * @return How many calls were replayed.
+		 */
+		public int getOperationCount() {
+			return operations;
+		}
+
+		/**
+		 * @return Calls per second over the untimed pass.
+		 */
+		public double getThroughput() {
+			return nanos == 0 ? Double.POSITIVE_INFINITY : operations * 1e9 / nanos;
+		}
+
+		/**
+		 * @return How many single rotations the replay made.
+		 */
+		public long getRotationCount() {
+			return rotations;
+		}
+
+		/**
+		 * @return The height of the tree once the whole trace was replayed.
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * @return The number of keys in the tree once the whole trace was replayed.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * <p>Reads a latency percentile off the histogram. The answer is the upper end of the bucket the
+		 * percentile falls in, so it is at most 1/32 above the exact value.</p>
+		 * @param p A percentile, between 0 and 100.
+		 * @return The latency, in nanoseconds, that p percent of the calls did not exceed.
+		 */
+		public long percentile(double p) {
+			if (p < 0 || p > 100)
+				throw new IllegalArgumentException("Percentiles must be between 0 and 100.");
+			long rank = (long) Math.ceil(operations * p / 100);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= rank && seen > 0)
+					return bucketHigh(i);
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("G=%-3d %12.0f ops/s  p50 %7d ns  p99 %7d ns  p99.9 %8d ns  %10d rotations  height %d",
+					maxImbalance, getThroughput(), percentile(50), percentile(99), percentile(99.9), rotations,
+					height);
+		}
+	}
+
+	private final byte[] ops;
+	private final Object[] keys;
+	private final int length;
+	private final boolean multiset;
+
+	private AVLGTreeReplay(byte[] ops, Object[] keys, int length, boolean multiset) {
+		this.ops = ops;
+		this.keys = keys;
+		this.length = length;
+		this.multiset = multiset;
+	}
+
+	/**
+	 * Reads a whole trace into memory.
+	 * @param channel Where to read the trace from.
+	 * @param codec The codec the trace was recorded with.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The replay.
+	 * @throws TreeFormatException if the data is not a trace, was recorded with a different codec, or is
+	 * corrupt. A trace cut short in the middle of a record, as left by a process that died while recording,
+	 * is read up to its last whole record.
+	 * @throws IOException if the channel cannot be read from.
+	 */
+	public static <T extends Comparable<T>> AVLGTreeReplay<T> load(ReadableByteChannel channel, KeyCodec<T> codec)
+			throws IOException {
+		int expectedId = KeyCodecs.idOf(codec);
+		ChannelInput in = new ChannelInput(channel);
+		boolean multiset;
+		try {
+			if (in.readInt() != AVLGTreeRecorder.TRACE_MAGIC)
+				throw new TreeFormatException("Not an AVL-G trace.");
+			int version = in.readByte();
+			if (version != AVLGTreeRecorder.TRACE_VERSION)
+				throw new TreeFormatException("Unsupported trace version " + version + ".");
+			int codecId = in.readByte();
+			if (codecId != expectedId)
+				throw new TreeFormatException("Trace was recorded with codec " + codecId + ", not " + expectedId + ".");
+			int flags = in.readByte();
+			if ((flags & ~AVLGTreeRecorder.FLAG_MULTISET) != 0)
+				throw new TreeFormatException("Unknown trace flags " + flags + ".");
+			multiset = (flags & AVLGTreeRecorder.FLAG_MULTISET) != 0;
+		} catch (EOFException e) {
+			throw new TreeFormatException("Trace is truncated.");
+		}
+		byte[] ops = new byte[1024];
+		Object[] keys = new Object[1024];
+		int n = 0;
+		try {
+			while (!in.atEnd()) {
+				int op = in.readByte();
+				if (op < AVLGTreeRecorder.OP_INSERT || op > AVLGTreeRecorder.OP_CLEAR)
+					throw new TreeFormatException("Unknown trace operation " + op + ".");
+				T key = op == AVLGTreeRecorder.OP_CLEAR ? null : codec.decode(null, in);
+				if (n == ops.length) {
+					ops = Arrays.copyOf(ops, n * 2);
+					keys = Arrays.copyOf(keys, n * 2);
+				}
+				ops[n] = (byte) op;
+				keys[n++] = key;
+			}
+		} catch (EOFException e) {
+			// the last record was cut short; keep the whole ones
+		}
+		return new AVLGTreeReplay<>(ops, keys, n, multiset);
+	}
+
+	/**
+	 * Reads a whole trace file into memory.
+	 * @param file The trace file.
+	 * @param codec The codec the trace was recorded with.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The replay.
+	 * @throws IOException if the file cannot be read, or does not hold a well-formed trace.
+	 * @see #load(ReadableByteChannel, KeyCodec)
+	 */
+	public static <T extends Comparable<T>> AVLGTreeReplay<T> load(Path file, KeyCodec<T> codec) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return load(channel, codec);
+		}
+	}
+
+	/**
+	 * @return How many calls the trace holds.
+	 */
+	public int getOperationCount() {
+		return length;
+	}
+
+	/**
+	 * @return {@code true} if the trace was recorded from a multiset, and is replayed against one.
+	 */
+	public boolean isMultiset() {
+		return multiset;
+	}
+
+	/**
+	 * Replays the trace against fresh trees with the given maximum imbalance, multisets if the trace was
+	 * recorded from one.
+	 * @param maxImbalance The maximum imbalance to try.
+	 * @return What the replay measured.
+	 * @throws InvalidBalanceException if maxImbalance is less than 1.
+	 */
+	public Result run(int maxImbalance) throws InvalidBalanceException {
+		AVLGTree<T> tree = new AVLGTree<>(maxImbalance, multiset);
+		long start = System.nanoTime();
+		for (int i = 0; i < length; i++)
+			apply(tree, i);
+		long nanos = System.nanoTime() - start;
+		long rotations = tree.getRotationCount();
+		int height = tree.getHeight();
+		int count = tree.getCount();
+
+		tree = new AVLGTree<>(maxImbalance, multiset);
+		long[] histogram = new long[BUCKETS];
+		for (int i = 0; i < length; i++) {
+			long t0 = System.nanoTime();
+			apply(tree, i);
+			histogram[bucket(System.nanoTime() - t0)]++;
+		}
+		return new Result(maxImbalance, length, nanos, rotations, height, count, histogram);
+	}
+
+	/* apply(AVLGTree<T> tree, int i):
+	 * Replays the ith call of the trace against tree
+	 *
+	 * Other notes:
+	 * EmptyTreeException is swallowed: the recorded call hit an empty tree too.
+	 */
+	@SuppressWarnings("unchecked")
+	private void apply(AVLGTree<T> tree, int i) {
+		T key = (T) keys[i];
+		try {
+			switch (ops[i]) {
+			case AVLGTreeRecorder.OP_INSERT:
+				tree.insert(key);
+				break;
+			case AVLGTreeRecorder.OP_DELETE:
+				tree.delete(key);
+				break;
+			case AVLGTreeRecorder.OP_SEARCH:
+				tree.search(key);
+				break;
+			default:
+				tree.clear();
+				break;
+			}
+		} catch (EmptyTreeException e) {
+			// same outcome as when it was recorded
+		}
+	}
+
+	/* bucket(long nanos):
+	 * Maps a latency to its histogram bucket
+	 *
+	 * Other notes:
+	 * A value with its top bit at position b >= SUB_BITS lands in the sub-bucket given by the SUB_BITS bits
+	 * below the top one. Negative values, from a clock going backwards, count as 0.
+	 */
+	private static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS)
+			return (int) Math.max(nanos, 0);
+		int top = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (top - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (top - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/* bucketHigh(int bucket):
+	 * The largest latency that maps to bucket; the inverse of bucket(long)
+	 */
+	private static long bucketHigh(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int top = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		long low = (1L << top) | (sub << (top - SUB_BITS));
+		return low + (1L << (top - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * <p>Replays a trace file at several maximum imbalances and prints what each one measured. The trace must
+	 * have been recorded with one of the codecs in {@link KeyCodecs}. Each imbalance is run once to warm up
+	 * and once more to measure.</p>
+	 * @param args The trace file, followed by the imbalances to try; 1 to 5 if none are given.
+	 * @throws Exception if the trace cannot be read.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: java avlg.AVLGTreeReplay <trace> [G...]");
+			System.exit(2);
+		}
+		Path file = Paths.get(args[0]);
+		List<Integer> imbalances = new ArrayList<>();
+		for (int i = 1; i < args.length; i++)
+			imbalances.add(Integer.parseInt(args[i]));
+		if (imbalances.isEmpty())
+			imbalances.addAll(Arrays.asList(1, 2, 3, 4, 5));
+
+		int id = codecId(file);
+		if (id == KeyCodecs.INTEGER.id())
+			report(load(file, KeyCodecs.INTEGER), file, imbalances);
+		else if (id == KeyCodecs.LONG.id())
+			report(load(file, KeyCodecs.LONG), file, imbalances);
+		else if (id == KeyCodecs.STRING.id())
+			report(load(file, KeyCodecs.STRING), file, imbalances);
+		else if (id == KeyCodecs.BYTES.id())
+			report(load(file, KeyCodecs.BYTES), file, imbalances);
+		else
+			throw new TreeFormatException("Trace was recorded with custom codec " + id + ".");
+	}
+
+	/* codecId(Path file):
+	 * Reads the codec id from a trace's header
+	 */
+	private static int codecId(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ChannelInput in = new ChannelInput(channel);
+			in.readInt();
+			in.readByte();
+			return in.readByte();
+		} catch (EOFException e) {
+			throw new TreeFormatException("Trace is truncated.");
+		}
+	}
+
+	/* report(AVLGTreeReplay<?> replay, Path file, List<Integer> imbalances):
+	 * Warms up and measures each imbalance in turn, printing one row each
+	 */
+	private static void report(AVLGTreeReplay<?> replay, Path file, List<Integer> imbalances)
+			throws InvalidBalanceException {
+		System.out.println(replay.getOperationCount() + " calls in " + file
+				+ (replay.isMultiset() ? ", recorded from a multiset" : ""));
+		for (int g : imbalances) {
+			replay.run(g);
+			System.out.println(replay.run(g));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package avlg;
+
+import avlg.exceptions.InvalidBalanceException;
+
+/**
+ * <p>{@link AugmentedAVLGTree} is an {@link AVLGTree} that maps every key to a value and keeps, in every node,
+ * the {@link Monoid} combination of all values in that node's subtree. Summaries are kept up to date through
+ * insertions, deletions and every rotation, so combining the values of any range of keys, such as the total
+ * volume between two timestamps, costs O(height) instead of a walk over the range.</p>
+ *
+ * <p>Keys inserted with {@link #insert(Comparable)} rather than {@link #put(Comparable, Object)} have no value,
+ * and count as the identity. For {@code long} and {@code double} values, {@link LongAugmentedAVLGTree} and
+ * {@link DoubleAugmentedAVLGTree} avoid boxing.</p>
+ *
+ * @param <K> The type of key stored in the tree.
+ * @param <V> The type of value mapped to each key.
+ * @see Monoid
+ */
+public class AugmentedAVLGTree<K extends Comparable<K>, V> extends AVLGTree<K> {
+
+	/* Node:
+	 * A tree node with its value and the summary of its subtree
+	 */
+	private final class Node extends TreeNode {
+		private V value; // null if the key has no value
+		private V summary;
+	}
+
+	private final Monoid<V> monoid;
+
+	/**
+	 * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+	 * @param monoid How values are combined.
+	 * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+	 */
+	public AugmentedAVLGTree(int maxImbalance, Monoid<V> monoid) throws InvalidBalanceException {
+		super(maxImbalance, false, true);
+		this.monoid = monoid;
+	}
+
+	@Override
+	TreeNode newNode() {
+		Node node = new Node();
+		node.summary = monoid.identity();
+		return node;
+	}
+
+	/* node(TreeNode node):
+	 * Every node of this tree is a Node, made by newNode()
+	 */
+	@SuppressWarnings("unchecked")
+	private Node node(TreeNode node) {
+		return (Node) node;
+	}
+
+	private V summaryOf(TreeNode node) {
+		return node == null ? monoid.identity() : node(node).summary;
+	}
+
+	private V valueOf(TreeNode node) {
+		V value = node == null ? null : node(node).value;
+		return value == null ? monoid.identity() : value;
+	}
+
+	/* Fold:
+	 * Combines the pieces of a range, as foldRange(..) hands them over, for aggregate(..)
+	 */
+	private final class Fold extends RangeFolder {
+		private V acc = monoid.identity();
+
+		@Override
+		void prepend(TreeNode node, TreeNode subtree) {
+			acc = monoid.combine(monoid.combine(valueOf(node), summaryOf(subtree)), acc);
+		}
+
+		@Override
+		void append(TreeNode subtree, TreeNode node) {
+			acc = monoid.combine(acc, monoid.combine(summaryOf(subtree), valueOf(node)));
+		}
+	}
+
+	@Override
+	void resetNode(TreeNode node) {
+		Node curr = node(node);
+		curr.value = null;
+		curr.summary = monoid.identity();
+	}
+
+	@Override
+	void augment(TreeNode node) {
+		node(node).summary = monoid.combine(monoid.combine(summaryOf(node.lChild), valueOf(node)),
+				summaryOf(node.rChild));
+	}
+
+	/**
+	 * Maps key to value, inserting key if it is not in the tree yet.
+	 * @param key The key.
+	 * @param value Its value, or {@code null} for no value.
+	 */
+	public void put(K key, V value) {
+		TreeNode at = descend(key);
+		int cmp = at == null ? 0 : key.compareTo(at.data);
+		if (at != null && cmp == 0) {
+			node(at).value = value;
+			augmentUp(at);
+			return;
+		}
+		Node fresh = node(makeNode());
+		fresh.data = key;
+		fresh.value = value;
+		fresh.summary = value == null ? monoid.identity() : value;
+		linkAt(at, cmp, fresh);
+	}
+
+	/**
+	 * @param key The key to look up.
+	 * @return The value of key, or {@code null} if key is not in the tree or has no value.
+	 */
+	public V get(K key) {
+		TreeNode node = findNode(key);
+		return node == null ? null : node(node).value;
+	}
+
+	/**
+	 * <p>Combines, in key order, the values of all keys between lo and hi, both included. Only the two paths
+	 * from the root towards lo and hi are walked, so this costs O(height) whatever the size of the range.</p>
+	 * @param lo The smallest key of the range, or {@code null} to start at the smallest key.
+	 * @param hi The largest key of the range, or {@code null} to run to the largest key.
+	 * @return The combined values, or the identity if the range is empty.
+	 */
+	public V aggregate(K lo, K hi) {
+		Fold fold = new Fold();
+		foldRange(lo, hi, fold);
+		return fold.acc;
+	}
+
+	/**
+	 * @return The combined values of the whole tree, in O(1).
+	 */
+	public V aggregate() {
+		return summaryOf(rootNode());
+	}
+}
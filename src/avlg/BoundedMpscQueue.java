@@ -0,0 +1,85 @@
+package avlg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>{@link BoundedMpscQueue} is a fixed-capacity, lock-free queue for many producer threads and a single
+ * consumer thread. Each slot carries a sequence number that tells producers when it is free and the
+ * consumer when it is full, so producers only contend on one counter and the consumer on nothing at all.
+ * {@link #offer(Object)} fails instead of blocking when the queue is full, which is what lets callers apply
+ * back-pressure.</p>
+ *
+ * @param <E> The type of element held in the queue.
+ * @see AVLGTreeIngestor
+ */
+final class BoundedMpscQueue<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> items;
+	private final AtomicLongArray sequences;
+	private final AtomicLong tail = new AtomicLong();
+	private long head; // only touched by the consumer
+
+	/**
+	 * @param capacity The maximum number of elements; rounded up to a power of two.
+	 */
+	BoundedMpscQueue(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30.");
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+		this.mask = size - 1;
+		this.items = new AtomicReferenceArray<>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Adds e at the tail of the queue, if there is room. Safe to call from any thread.
+	 * @param e The element to add.
+	 * @return {@code true} if e was added, {@code false} if the queue is full.
+	 */
+	boolean offer(E e) {
+		while (true) {
+			long t = tail.get();
+			int index = (int) (t & mask);
+			long gap = sequences.get(index) - t;
+			if (gap == 0) {
+				if (tail.compareAndSet(t, t + 1)) {
+					items.lazySet(index, e);
+					sequences.set(index, t + 1); // publishes the item
+					return true;
+				}
+			} else if (gap < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Removes the element at the head of the queue. Must only be called from the consumer thread.
+	 * @return The element removed, or {@code null} if the queue is empty.
+	 */
+	E poll() {
+		int index = (int) (head & mask);
+		if (sequences.get(index) != head + 1)
+			return null;
+		E e = items.get(index);
+		items.lazySet(index, null);
+		sequences.set(index, head + mask + 1); // hands the slot back to producers
+		head++;
+		return e;
+	}
+
+	/**
+	 * Reports whether the queue looks empty. Must only be called from the consumer thread.
+	 * @return {@code true} if there is nothing to poll right now.
+	 */
+	boolean isEmpty() {
+		return sequences.get((int) (head & mask)) != head + 1;
+	}
+}
@@ -0,0 +1,115 @@
+package avlg;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>{@link ByteKey} is an immutable sequence of bytes, ordered lexicographically with every byte taken as
+ * unsigned. It is the key type of {@link ByteKeyAVLGTree}, which compares keys with long shared prefixes much
+ * faster than a tree of strings.</p>
+ *
+ * <p>For keys made with {@link #of(String)}, this order is the order of Unicode code points, which only
+ * differs from {@link String#compareTo(String)} for strings mixing supplementary characters with characters
+ * between U+E000 and U+FFFF.</p>
+ *
+ * @see ByteKeyAVLGTree
+ * @see KeyCodecs#BYTES
+ */
+public final class ByteKey implements Comparable<ByteKey> {
+
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	final byte[] bytes;
+
+	private ByteKey(byte[] bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param bytes The bytes of the key; copied, so the array may be reused afterwards.
+	 * @return The key.
+	 */
+	public static ByteKey of(byte[] bytes) {
+		return new ByteKey(bytes.clone());
+	}
+
+	/**
+	 * @param s A string.
+	 * @return The key holding s in UTF-8.
+	 */
+	public static ByteKey of(String s) {
+		return new ByteKey(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/* wrap(byte[] bytes):
+	 * Makes a key around an array nobody else holds, without copying it, for codecs
+	 */
+	static ByteKey wrap(byte[] bytes) {
+		return new ByteKey(bytes);
+	}
+
+	/* prefixOf(byte[] bytes):
+	 * Packs the first 8 bytes big-endian into a long, padded with zeros
+	 *
+	 * Other notes:
+	 * Comparing two prefixes unsigned gives the order of the keys whenever the prefixes differ: past the end
+	 * of a key, its padding is 0 while the other key has a byte there of at least 0, and differs, so the
+	 * shorter key comes first as it should. Equal prefixes say nothing beyond the shorter key.
+	 */
+	static long prefixOf(byte[] bytes) {
+		if (bytes.length >= Long.BYTES)
+			return (long) LONGS.get(bytes, 0);
+		long prefix = 0;
+		for (int i = 0; i < Long.BYTES; i++)
+			prefix = prefix << 8 | (i < bytes.length ? bytes[i] & 0xFF : 0);
+		return prefix;
+	}
+
+	/**
+	 * @return The number of bytes in the key.
+	 */
+	public int length() {
+		return bytes.length;
+	}
+
+	/**
+	 * @param index A position in the key.
+	 * @return The byte at index, as an unsigned value between 0 and 255.
+	 */
+	public int byteAt(int index) {
+		return bytes[index] & 0xFF;
+	}
+
+	/**
+	 * @return A copy of the bytes of the key.
+	 */
+	public byte[] toByteArray() {
+		return bytes.clone();
+	}
+
+	@Override
+	public int compareTo(ByteKey other) {
+		return Arrays.compareUnsigned(bytes, other.bytes);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof ByteKey && Arrays.equals(bytes, ((ByteKey) o).bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bytes);
+	}
+
+	/**
+	 * @return The key decoded as UTF-8, with malformed bytes replaced.
+	 */
+	@Override
+	public String toString() {
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
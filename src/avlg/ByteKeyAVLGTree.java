@@ -0,0 +1,140 @@
+package avlg;
+
+import avlg.exceptions.InvalidBalanceException;
+
+import java.util.Arrays;
+
+/**
+ * <p>{@link ByteKeyAVLGTree} is an {@link AVLGTree} of {@link ByteKey}s, built for keys that share long
+ * prefixes, such as URLs and paths. A tree of strings compares every key it passes from its first character,
+ * so looking up a key that shares k bytes with its neighbours costs about k times the height. In this tree
+ * it usually costs closer to k plus the height.</p>
+ *
+ * <p>Two things make this work. Every node caches the first 8 bytes of its key, so most comparisons near the
+ * root are settled by a single comparison of two {@code long}s, without reading the key at all. And the
+ * descent keeps track of how many leading bytes the key shares with the nearest keys passed on either side.
+ * Every key below shares at least the smaller of the two, so each comparison starts right there instead of
+ * at the first byte.</p>
+ *
+ * <p>Every method of {@link AVLGTree} works as usual. {@link #insert(Comparable)}, {@link #search(Comparable)},
+ * {@link #contains(Comparable)}, {@link #delete(Comparable)} and {@link #count(Comparable)} descend this way
+ * from the root. Cursors only do when they start off the tree; otherwise they climb from their current key
+ * and compare whole keys, which pays off when the next key is close by.</p>
+ *
+ * @see ByteKey
+ */
+public class ByteKeyAVLGTree extends AVLGTree<ByteKey> {
+
+	/* Node:
+	 * A tree node with the first bytes of its key, as packed by ByteKey.prefixOf(..)
+	 */
+	private final class Node extends TreeNode {
+		private long prefix;
+	}
+
+	/**
+	 * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+	 * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+	 */
+	public ByteKeyAVLGTree(int maxImbalance) throws InvalidBalanceException {
+		super(maxImbalance);
+	}
+
+	@Override
+	TreeNode newNode() {
+		return new Node();
+	}
+
+	/* node(TreeNode node):
+	 * Every node of this tree is a Node, made by newNode()
+	 */
+	private Node node(TreeNode node) {
+		return (Node) node;
+	}
+
+	/* linkAt(TreeNode at, int cmp, TreeNode leaf):
+	 * Sets the cached prefix of a new node, then links it in as usual
+	 *
+	 * Other notes:
+	 * Every node enters this tree through here, so every linked node has its prefix set. Nodes are only
+	 * made once the key is known to be new, so a key that is already there costs no node.
+	 */
+	@Override
+	void linkAt(TreeNode at, int cmp, TreeNode leaf) {
+		node(leaf).prefix = ByteKey.prefixOf(leaf.data.bytes);
+		super.linkAt(at, cmp, leaf);
+	}
+
+	@Override
+	void insertKey(ByteKey key) {
+		insertAt(null, key);
+	}
+
+	@Override
+	TreeNode locate(ByteKey keyInput) {
+		return find(keyInput.bytes, true);
+	}
+
+	@Override
+	TreeNode descend(ByteKey keyInput) {
+		return find(keyInput.bytes, false);
+	}
+
+	/* find(byte[] key, boolean exact):
+	 * Descends from the root, resuming every comparison past the bytes key is known to share with the node
+	 *
+	 * Parameters:
+	 * key - the bytes of the key to look for
+	 * exact - whether to return null, rather than the node key would be attached under, if key is missing
+	 *
+	 * Other notes:
+	 * low and high are the lengths of the prefixes key shares with the nearest keys passed on the left and
+	 * on the right. Every key in the current subtree lies between those two, so it shares at least
+	 * min(low, high) bytes with key. Within the first 8 bytes, the cached prefixes are compared first; only
+	 * when they are equal is the key itself read, and from the 9th byte on.
+	 * Where cached prefixes differ in the zero padding of a shorter node key, shared overstates what key shares
+	 * with that node. Keys between the two then either share that much with key too, or end with zeros
+	 * before it, which is why from is capped at the length of the node's key.
+	 * Returns the node holding key, or per exact, or null if the tree is empty.
+	 */
+	private TreeNode find(byte[] key, boolean exact) {
+		TreeNode curr = rootNode();
+		if (curr == null)
+			return null;
+		long prefix = ByteKey.prefixOf(key);
+		int low = 0;
+		int high = 0;
+		while (true) {
+			int from = Math.min(low, high);
+			int shared;
+			boolean less;
+			long cached = node(curr).prefix;
+			if (from < Long.BYTES && cached != prefix) {
+				shared = Math.min(Long.numberOfLeadingZeros(prefix ^ cached) >>> 3, key.length);
+				less = Long.compareUnsigned(prefix, cached) < 0;
+			} else {
+				byte[] other = curr.data.bytes;
+				if (from < Long.BYTES)
+					from = Math.min(Long.BYTES, Math.min(key.length, other.length));
+				else
+					from = Math.min(from, other.length);
+				int mismatch = Arrays.mismatch(key, from, key.length, other, from, other.length);
+				if (mismatch < 0)
+					return curr;
+				shared = from + mismatch;
+				less = shared == key.length || (shared < other.length && (key[shared] & 0xFF) < (other[shared] & 0xFF));
+			}
+			TreeNode next;
+			if (less) {
+				high = shared;
+				next = curr.lChild;
+			} else {
+				low = shared;
+				next = curr.rChild;
+			}
+			if (next == null)
+				return exact ? null : curr;
+			curr = next;
+		}
+	}
+}
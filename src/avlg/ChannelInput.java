@@ -0,0 +1,157 @@
+package avlg;
+
+import avlg.exceptions.TreeFormatException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * <p>{@link ChannelInput} is the reading counterpart of {@link ChannelOutput}. It either refills a single
+ * direct buffer from a {@link ReadableByteChannel}, or reads straight out of a buffer that already holds all of
+ * the data (for example a memory-mapped file). Either way, reading a key allocates nothing besides the key
+ * itself.</p>
+ *
+ * @see ChannelOutput
+ * @see KeyCodec
+ */
+public final class ChannelInput {
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Creates an input with a buffer of {@link ChannelOutput#DEFAULT_BUFFER_SIZE} bytes.
+	 * @param channel The channel to read from.
+	 */
+	public ChannelInput(ReadableByteChannel channel) {
+		this(channel, ChannelOutput.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates an input with a buffer of the given size.
+	 * @param channel The channel to read from; must be in blocking mode.
+	 * @param bufferSize The buffer size in bytes; must be at least 16.
+	 * @throws IllegalArgumentException if channel is a non-blocking {@link SelectableChannel}.
+	 */
+	public ChannelInput(ReadableByteChannel channel, int bufferSize) {
+		if (bufferSize < 16)
+			throw new IllegalArgumentException("Buffer size must be at least 16 bytes.");
+		if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking())
+			throw new IllegalArgumentException("Channel must be in blocking mode.");
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		buffer.flip();
+	}
+
+	/**
+	 * <p>Creates an input that reads the remaining bytes of source and nothing else. The buffer's position is
+	 * advanced as data is read.</p>
+	 * @param source The buffer to read from.
+	 */
+	public ChannelInput(ByteBuffer source) {
+		this.channel = null;
+		this.buffer = source;
+	}
+
+	/* fill():
+	 * Refills the buffer from the channel
+	 * 
+	 * Other notes:
+	 * Returns false if there is nothing left to read, either because the channel is at its end or
+	 * because this input reads from a fixed buffer. A blocking channel only reads nothing when the buffer
+	 * is full, which compact() rules out, so reading again until something comes in cannot spin.
+	 */
+	private boolean fill() throws IOException {
+		if (channel == null)
+			return false;
+		buffer.compact();
+		int read;
+		do {
+			read = channel.read(buffer);
+		} while (read == 0);
+		buffer.flip();
+		return read > 0;
+	}
+
+	/**
+	 * Reports whether every byte has been consumed.
+	 * @return {@code true} if there is nothing left to read, {@code false} otherwise.
+	 * @throws IOException if the channel cannot be read from.
+	 */
+	public boolean atEnd() throws IOException {
+		return !buffer.hasRemaining() && !fill();
+	}
+
+	/**
+	 * Reads a single byte.
+	 * @return The byte read, as an unsigned value between 0 and 255.
+	 * @throws EOFException if there is nothing left to read.
+	 * @throws IOException if the channel cannot be read from.
+	 */
+	public int readByte() throws IOException {
+		if (!buffer.hasRemaining() && !fill())
+			throw new EOFException("Unexpected end of input.");
+		return buffer.get() & 0xFF;
+	}
+
+	/**
+	 * Reads a big-endian 32-bit integer.
+	 * @return The value read.
+	 * @throws EOFException if fewer than four bytes are left.
+	 * @throws IOException if the channel cannot be read from.
+	 */
+	public int readInt() throws IOException {
+		if (buffer.remaining() >= 4)
+			return buffer.getInt();
+		return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint written by {@link ChannelOutput#writeVarLong(long)}.
+	 * @return The value read.
+	 * @throws EOFException if the input ends in the middle of the varint.
+	 * @throws TreeFormatException if the varint is longer than ten bytes.
+	 * @throws IOException if the channel cannot be read from.
+	 */
+	public long readVarLong() throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new TreeFormatException("Malformed varint.");
+	}
+
+	/**
+	 * Reads exactly len bytes.
+	 * @param dst The destination array.
+	 * @param off Where in dst to start writing.
+	 * @param len The number of bytes to read.
+	 * @throws EOFException if fewer than len bytes are left.
+	 * @throws IOException if the channel cannot be read from.
+	 */
+	public void readFully(byte[] dst, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining() && !fill())
+				throw new EOFException("Unexpected end of input.");
+			int chunk = Math.min(len, buffer.remaining());
+			buffer.get(dst, off, chunk);
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Inverse of {@link ChannelOutput#zigZag(long)}.
+	 * @param v The zig-zag encoded value.
+	 * @return The signed value.
+	 */
+	public static long unZigZag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+}
@@ -0,0 +1,139 @@
+package avlg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>{@link ChannelOutput} is a small buffered writer over a {@link WritableByteChannel}. It is what
+ * {@link KeyCodec}s write into when a tree is saved, so a codec only ever deals with bytes and varints and
+ * never with the channel itself.</p>
+ *
+ * <p>The output owns a single direct buffer which is drained to the channel whenever it fills up, so
+ * writing a key allocates nothing. Call {@link #flush()} once done; the channel itself is never closed.</p>
+ *
+ * @see ChannelInput
+ * @see KeyCodec
+ */
+public final class ChannelOutput {
+
+	/** Default buffer size, in bytes. */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+
+	/**
+	 * Creates an output with a buffer of {@link #DEFAULT_BUFFER_SIZE} bytes.
+	 * @param channel The channel to write to.
+	 */
+	public ChannelOutput(WritableByteChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates an output with a buffer of the given size.
+	 * @param channel The channel to write to.
+	 * @param bufferSize The buffer size in bytes; must be at least 16.
+	 */
+	public ChannelOutput(WritableByteChannel channel, int bufferSize) {
+		if (bufferSize < 16)
+			throw new IllegalArgumentException("Buffer size must be at least 16 bytes.");
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/* ensure(int n):
+	 * Makes room for n more bytes in the buffer
+	 * 
+	 * Parameters:
+	 * n - number of bytes about to be written; never more than the buffer capacity
+	 * 
+	 * Other notes:
+	 * Drains the buffer to the channel if there is not enough room left.
+	 */
+	private void ensure(int n) throws IOException {
+		if (buffer.remaining() < n)
+			drain();
+	}
+
+	/* drain():
+	 * Writes everything buffered so far to the channel and resets the buffer
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Writes a single byte.
+	 * @param b The byte to write; only the low 8 bits are used.
+	 * @throws IOException if the channel cannot be written to.
+	 */
+	public void writeByte(int b) throws IOException {
+		ensure(1);
+		buffer.put((byte) b);
+	}
+
+	/**
+	 * Writes a big-endian 32-bit integer.
+	 * @param v The value to write.
+	 * @throws IOException if the channel cannot be written to.
+	 */
+	public void writeInt(int v) throws IOException {
+		ensure(4);
+		buffer.putInt(v);
+	}
+
+	/**
+	 * <p>Writes an unsigned LEB128 varint. Values are treated as unsigned, so negative numbers take the full
+	 * ten bytes; use {@link #zigZag(long)} for signed quantities.</p>
+	 * @param v The value to write.
+	 * @throws IOException if the channel cannot be written to.
+	 */
+	public void writeVarLong(long v) throws IOException {
+		ensure(10);
+		while ((v & ~0x7FL) != 0) {
+			buffer.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buffer.put((byte) v);
+	}
+
+	/**
+	 * Writes a range of bytes, draining the buffer as many times as needed.
+	 * @param src The source array.
+	 * @param off The first byte to write.
+	 * @param len The number of bytes to write.
+	 * @throws IOException if the channel cannot be written to.
+	 */
+	public void writeBytes(byte[] src, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!buffer.hasRemaining())
+				drain();
+			int chunk = Math.min(len, buffer.remaining());
+			buffer.put(src, off, chunk);
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Writes everything buffered so far to the channel.
+	 * @throws IOException if the channel cannot be written to.
+	 */
+	public void flush() throws IOException {
+		drain();
+	}
+
+	/**
+	 * Maps a signed value onto an unsigned one so that small magnitudes stay small as varints.
+	 * @param v The signed value.
+	 * @return The zig-zag encoding of v.
+	 */
+	public static long zigZag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+}
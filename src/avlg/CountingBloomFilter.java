@@ -0,0 +1,126 @@
+package avlg;
+
+import java.util.Arrays;
+
+/**
+ * <p>{@link CountingBloomFilter} is an approximate set that supports removal. Each key sets k of m four-bit
+ * counters, chosen by double hashing its {@link Object#hashCode()}. A key whose counters are not all
+ * non-zero has certainly never been added, or has been removed since. Otherwise it is probably there,
+ * with a false-positive rate close to the one the filter was sized for, as long as it holds no more keys
+ * than its capacity.</p>
+ *
+ * <p>A counter that reaches 15 sticks there and is never decremented again, so removals can never cause a
+ * false negative; such overflows take far more keys than the capacity to become common.</p>
+ *
+ * @see AVLGTree#enableSearchFilter(double)
+ */
+final class CountingBloomFilter {
+
+	private static final int SATURATED = 15;
+
+	private final long[] words; // sixteen four-bit counters per word
+	private final int mask;
+	private final int hashes;
+	private final int capacity;
+
+	/**
+	 * @param capacity How many keys the filter should hold at once.
+	 * @param falsePositiveRate The rate of false positives wanted at capacity, strictly between 0 and 1.
+	 */
+	CountingBloomFilter(int capacity, double falsePositiveRate) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+			throw new IllegalArgumentException("False-positive rate must be strictly between 0 and 1.");
+		double ln2 = Math.log(2);
+		double bits = -capacity * Math.log(falsePositiveRate) / (ln2 * ln2);
+		int counters = Integer.highestOneBit((int) Math.min(bits, 1 << 30));
+		if (counters < bits)
+			counters <<= 1;
+		counters = Math.max(counters, 64);
+		this.words = new long[counters >>> 4];
+		this.mask = counters - 1;
+		this.hashes = Math.max(1, (int) Math.round((double) counters / capacity * ln2));
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return How many keys the filter was sized for.
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	/* hash(Object key):
+	 * Spreads hashCode() over 64 bits (MurmurHash3's finalizer); the two halves seed the double hashing
+	 */
+	private static long hash(Object key) {
+		long h = key.hashCode() * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+
+	private int counter(int index) {
+		return (int) (words[index >>> 4] >>> ((index & 15) << 2)) & SATURATED;
+	}
+
+	private void step(int index, long delta) {
+		words[index >>> 4] += delta << ((index & 15) << 2);
+	}
+
+	/**
+	 * Adds one occurrence of key.
+	 * @param key The key to add.
+	 */
+	void add(Object key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int index = (h1 + i * h2) & mask;
+			if (counter(index) != SATURATED)
+				step(index, 1);
+		}
+	}
+
+	/**
+	 * Removes one occurrence of key, which must have been added before.
+	 * @param key The key to remove.
+	 */
+	void remove(Object key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int index = (h1 + i * h2) & mask;
+			int count = counter(index);
+			if (count != SATURATED && count != 0)
+				step(index, -1);
+		}
+	}
+
+	/**
+	 * @param key The key to look for.
+	 * @return {@code false} if key is certainly not in the filter, {@code true} if it probably is.
+	 */
+	boolean mightContain(Object key) {
+		long h = hash(key);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		for (int i = 0; i < hashes; i++) {
+			if (counter((h1 + i * h2) & mask) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes every key.
+	 */
+	void clear() {
+		Arrays.fill(words, 0L);
+	}
+}
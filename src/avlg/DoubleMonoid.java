@@ -0,0 +1,56 @@
+package avlg;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * <p>A {@link Monoid} over {@code double} values, for {@link DoubleAugmentedAVLGTree}. Aggregating through one never
+ * boxes a value.</p>
+ *
+ * @see Monoid
+ * @see DoubleAugmentedAVLGTree
+ */
+public interface DoubleMonoid {
+
+	/**
+	 * Addition, with identity 0. Floating-point addition is only associative up to rounding, so sums may
+	 * differ in the last bits from a left-to-right sum, depending on how the tree is shaped.
+	 */
+	DoubleMonoid SUM = of(0, (a, b) -> a + b);
+
+	/** Minimum, with identity {@code Double.POSITIVE_INFINITY}. */
+	DoubleMonoid MIN = of(Double.POSITIVE_INFINITY, Math::min);
+
+	/** Maximum, with identity {@code Double.NEGATIVE_INFINITY}. */
+	DoubleMonoid MAX = of(Double.NEGATIVE_INFINITY, Math::max);
+
+	/**
+	 * @return The value that combines with any other value v into v, on either side.
+	 */
+	double identity();
+
+	/**
+	 * Combines two values; must be associative.
+	 * @param left The value of the smaller keys.
+	 * @param right The value of the larger keys.
+	 * @return The combined value.
+	 */
+	double combine(double left, double right);
+
+	/**
+	 * Makes a monoid out of an identity and an associative operator.
+	 * @param identity The identity of op.
+	 * @param op An associative operator.
+	 * @return The monoid.
+	 */
+	static DoubleMonoid of(double identity, DoubleBinaryOperator op) {
+		return new DoubleMonoid() {
+			public double identity() {
+				return identity;
+			}
+
+			public double combine(double left, double right) {
+				return op.applyAsDouble(left, right);
+			}
+		};
+	}
+}
@@ -0,0 +1,497 @@
+package avlg;
+
+import avlg.StorageIO.ByteSink;
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import avlg.exceptions.TreeFormatException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * <p>{@link DurableAVLGTree} keeps an {@link AVLGTree} in memory and makes its updates durable through an
+ * append-only write-ahead log. Every {@link #insert(Comparable)}, {@link #delete(Comparable)} and
+ * {@link #clear()} is applied to the tree and appended to an in-memory batch. Batches are written and
+ * {@code fsync}-ed together (<em>group commit</em>), either every {@code flushIntervalMillis} by a background
+ * thread, or as soon as someone calls {@link #sync()}. One {@code fsync} thus covers every update made since
+ * the previous one, however many threads made them.</p>
+ *
+ * <p>The directory holds at most one snapshot ({@code snapshot-N.avlg}, written with
+ * {@link AVLGTree#save(Path, KeyCodec)}) and the log of everything after it ({@code wal-N.log}).
+ * {@link #open(Path, int, KeyCodec, long)} loads the newest snapshot and replays its log on top, dropping a torn
+ * batch at the end of the log if the process died halfway through writing it. {@link #checkpoint()} rolls the
+ * log into a new snapshot and starts an empty log, which keeps recovery time bounded.</p>
+ *
+ * <p>Updates are durable once {@link #sync()} returns, or at most one flush interval after they were made.
+ * All methods are thread-safe.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTree
+ * @see KeyCodec
+ */
+public class DurableAVLGTree<T extends Comparable<T>> implements AutoCloseable {
+
+	private static final int LOG_MAGIC = 0x41564C57; // "AVLW"
+	private static final int LOG_VERSION = 1;
+	private static final int LOG_HEADER_SIZE = 5;
+	private static final byte OP_INSERT = 1;
+	private static final byte OP_DELETE = 2;
+	private static final byte OP_CLEAR = 3;
+
+	private final Path directory;
+	private final KeyCodec<T> codec;
+	private final AVLGTree<T> tree;
+	private final ScheduledExecutorService flusher;
+	private final Object flushLock = new Object();
+	private final CRC32 crc = new CRC32();
+
+	// Guarded by this
+	private ByteSink active = new ByteSink();
+	private ChannelOutput activeOut = new ChannelOutput(active, 256);
+	private final ByteSink record = new ByteSink();
+	private final ChannelOutput recordOut = new ChannelOutput(record, 256);
+	private long appendedOps;
+	private long generation;
+	private FileChannel log;
+	private IOException failure;
+	private boolean closed;
+
+	// Guarded by flushLock
+	private ByteSink spare = new ByteSink();
+	private ChannelOutput spareOut = new ChannelOutput(spare, 256);
+	private volatile long durableOps;
+
+	private DurableAVLGTree(Path directory, KeyCodec<T> codec, AVLGTree<T> tree, long generation,
+			FileChannel log, long flushIntervalMillis) {
+		this.directory = directory;
+		this.codec = codec;
+		this.tree = tree;
+		this.generation = generation;
+		this.log = log;
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "avlg-wal-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(() -> {
+			try {
+				sync();
+			} catch (IOException | IllegalStateException e) {
+				// Recorded in failure and reported to the next caller.
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * <p>Opens the durable tree stored in directory, creating it if needed. If the directory holds a snapshot,
+	 * it is loaded and the maximum imbalance it was saved with takes precedence over maxImbalance.</p>
+	 * @param directory Where the snapshot and log live.
+	 * @param maxImbalance The maximum imbalance of a newly created tree.
+	 * @param codec The codec used for keys, both in the snapshot and in the log.
+	 * @param flushIntervalMillis How often pending updates are written and synced in the background.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The recovered tree.
+	 * @throws InvalidBalanceException if a new tree has to be created and maxImbalance is smaller than 1.
+	 * @throws IOException if the directory cannot be read or written, or holds a corrupt snapshot.
+	 */
+	public static <T extends Comparable<T>> DurableAVLGTree<T> open(Path directory, int maxImbalance,
+			KeyCodec<T> codec, long flushIntervalMillis) throws InvalidBalanceException, IOException {
+		if (flushIntervalMillis < 1)
+			throw new IllegalArgumentException("Flush interval must be at least 1 ms.");
+		KeyCodecs.idOf(codec);
+		Files.createDirectories(directory);
+		long generation = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "snapshot-*.avlg")) {
+			for (Path file : files)
+				generation = Math.max(generation, generationOf(file));
+		}
+		AVLGTree<T> tree;
+		if (generation < 0) {
+			generation = 0;
+			tree = new AVLGTree<>(maxImbalance);
+		} else {
+			tree = AVLGTree.load(snapshotFile(directory, generation), codec);
+		}
+		FileChannel log = replay(logFile(directory, generation), tree, codec);
+		removeStale(directory, generation);
+		return new DurableAVLGTree<>(directory, codec, tree, generation, log, flushIntervalMillis);
+	}
+
+	/* replay(Path file, AVLGTree<T> tree, KeyCodec<T> codec):
+	 * Applies every complete batch of the log to tree
+	 *
+	 * Parameters:
+	 * file - the log to replay; created with a fresh header if it does not exist
+	 * tree - the tree loaded from the matching snapshot
+	 * codec - how keys were written
+	 *
+	 * Other notes:
+	 * A batch that is cut short or fails its checksum can only be the last one, written while the process died.
+	 * The log is truncated right before it.
+	 * Returns the log, opened for appending.
+	 */
+	private static <T extends Comparable<T>> FileChannel replay(Path file, AVLGTree<T> tree, KeyCodec<T> codec)
+			throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			if (channel.size() < LOG_HEADER_SIZE) {
+				channel.truncate(0);
+				writeHeader(channel);
+				return channel;
+			}
+			ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			if (header.getInt() != LOG_MAGIC || header.get() != LOG_VERSION)
+				throw new TreeFormatException(file + " is not a write-ahead log.");
+			long position = LOG_HEADER_SIZE;
+			ByteBuffer frame = ByteBuffer.allocate(8);
+			CRC32 crc = new CRC32();
+			while (true) {
+				frame.clear();
+				if (readFully(channel, frame, position) < 8)
+					break;
+				frame.flip();
+				int length = frame.getInt();
+				int checksum = frame.getInt();
+				if (length < 0 || position + 8 + length > channel.size())
+					break;
+				ByteBuffer batch = ByteBuffer.allocate(length);
+				readFully(channel, batch, position + 8);
+				batch.flip();
+				crc.reset();
+				crc.update(batch.duplicate());
+				if ((int) crc.getValue() != checksum)
+					break;
+				apply(batch, tree, codec);
+				position += 8 + length;
+			}
+			channel.truncate(position);
+			channel.position(position);
+			return channel;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/* apply(ByteBuffer batch, AVLGTree<T> tree, KeyCodec<T> codec):
+	 * Replays the records of one batch against tree
+	 */
+	private static <T extends Comparable<T>> void apply(ByteBuffer batch, AVLGTree<T> tree, KeyCodec<T> codec)
+			throws IOException {
+		ChannelInput in = new ChannelInput(batch);
+		while (!in.atEnd()) {
+			int op = in.readByte();
+			if (op == OP_CLEAR) {
+				tree.clear();
+			} else if (op == OP_INSERT) {
+				tree.insert(codec.decode(null, in));
+			} else if (op == OP_DELETE) {
+				T key = codec.decode(null, in);
+				try {
+					tree.delete(key);
+				} catch (EmptyTreeException e) {
+					// Only ever logged for keys that were there, and no record is replayed on top of a
+					// snapshot that holds it already, so replay cannot get here.
+				}
+			} else {
+				throw new TreeFormatException("Unknown log record " + op + ".");
+			}
+		}
+	}
+
+	/* readFully(FileChannel channel, ByteBuffer dst, long position):
+	 * Reads from position until dst is full or the file ends
+	 *
+	 * Other notes:
+	 * Returns the number of bytes read.
+	 */
+	private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, position + total);
+			if (n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	private static void writeHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+		header.putInt(LOG_MAGIC).put((byte) LOG_VERSION).flip();
+		while (header.hasRemaining())
+			channel.write(header);
+		channel.force(true);
+	}
+
+	private static Path snapshotFile(Path directory, long generation) {
+		return directory.resolve("snapshot-" + generation + ".avlg");
+	}
+
+	private static Path logFile(Path directory, long generation) {
+		return directory.resolve("wal-" + generation + ".log");
+	}
+
+	private static long generationOf(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			return Long.parseLong(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	/* removeStale(Path directory, long generation):
+	 * Deletes snapshots and logs older than generation, left behind by an interrupted checkpoint
+	 */
+	private static void removeStale(Path directory, long generation) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{snapshot-*.avlg,wal-*.log,*.tmp}")) {
+			for (Path file : files) {
+				if (file.toString().endsWith(".tmp") || generationOf(file) < generation)
+					Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/* checkWritable():
+	 * Refuses updates once the tree is closed or the log has failed
+	 *
+	 * Other notes:
+	 * Must hold the monitor. Called before the tree is touched, so a refused update leaves no trace.
+	 */
+	private void checkWritable() {
+		if (closed)
+			throw new IllegalStateException("Tree has been closed.");
+		if (failure != null)
+			throw new IllegalStateException("Write-ahead log has failed.", failure);
+	}
+
+	/* append(byte op, T key):
+	 * Adds one record to the active batch
+	 *
+	 * Other notes:
+	 * Must hold the monitor. The batch lives in memory, so this never touches the disk. Every record but a
+	 * clear carries its key, so a null key is left to the codec to reject rather than taken for a clear.
+	 * The record is encoded on its own first and only copied into the batch once whole, so a key the codec
+	 * rejects leaves the batch as it was instead of an op byte that replay would read the next record into.
+	 */
+	private void append(byte op, T key) {
+		try {
+			try {
+				recordOut.writeByte(op);
+				if (op != OP_CLEAR)
+					codec.encode(key, null, recordOut);
+			} finally {
+				recordOut.flush(); // a failed record is flushed too, then dropped below
+			}
+			activeOut.writeBytes(record.bytes.array(), 0, record.bytes.position());
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // ByteSink never throws
+		} finally {
+			record.bytes.clear();
+		}
+		appendedOps++;
+	}
+
+	/**
+	 * Inserts key into the tree and logs the insertion.
+	 * @param key The key to insert.
+	 * @throws IllegalStateException if the tree has been closed or the log can no longer be written.
+	 * @see AVLGTree#insert(Comparable)
+	 */
+	public synchronized void insert(T key) {
+		checkWritable();
+		append(OP_INSERT, key);
+		tree.insert(key);
+	}
+
+	/**
+	 * Deletes key from the tree, logging the deletion if the key was there.
+	 * @param key The key to delete.
+	 * @return The key that was removed, or {@code null} if the key was not found.
+	 * @throws EmptyTreeException if the tree is empty.
+	 * @throws IllegalStateException if the tree has been closed or the log can no longer be written.
+	 * @see AVLGTree#delete(Comparable)
+	 */
+	public synchronized T delete(T key) throws EmptyTreeException {
+		checkWritable();
+		T removed = tree.delete(key);
+		if (removed != null)
+			append(OP_DELETE, key);
+		return removed;
+	}
+
+	/**
+	 * Empties the tree and logs it.
+	 * @throws IllegalStateException if the tree has been closed or the log can no longer be written.
+	 * @see AVLGTree#clear()
+	 */
+	public synchronized void clear() {
+		checkWritable();
+		append(OP_CLEAR, null);
+		tree.clear();
+	}
+
+	/**
+	 * Searches the tree for key.
+	 * @param key The key to search for.
+	 * @return key if key is in the tree, or {@code null} otherwise.
+	 * @throws EmptyTreeException if the tree is empty.
+	 * @see AVLGTree#search(Comparable)
+	 */
+	public synchronized T search(T key) throws EmptyTreeException {
+		return tree.search(key);
+	}
+
+	/**
+	 * @return The number of elements in the tree.
+	 * @see AVLGTree#getCount()
+	 */
+	public synchronized int getCount() {
+		return tree.getCount();
+	}
+
+	/**
+	 * @return The maximum imbalance of the tree.
+	 */
+	public synchronized int getMaxImbalance() {
+		return tree.getMaxImbalance();
+	}
+
+	/**
+	 * <p>Blocks until every update made before the call is on disk. Concurrent callers share a single
+	 * write and {@code fsync}: whoever gets there first flushes the whole pending batch, and the others find
+	 * their updates already covered.</p>
+	 * @throws IOException if the log cannot be written; the tree stops accepting updates from then on.
+	 */
+	public void sync() throws IOException {
+		long target;
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+			target = appendedOps;
+		}
+		if (durableOps >= target)
+			return;
+		synchronized (flushLock) {
+			if (durableOps >= target)
+				return;
+			ByteSink batch;
+			long covered;
+			FileChannel channel;
+			synchronized (this) {
+				if (failure != null)
+					throw failure;
+				activeOut.flush();
+				batch = active;
+				active = spare;
+				spare = batch;
+				ChannelOutput out = activeOut;
+				activeOut = spareOut;
+				spareOut = out;
+				covered = appendedOps;
+				channel = log;
+			}
+			try {
+				writeBatch(channel, batch.bytes);
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+				}
+				throw e;
+			} finally {
+				batch.bytes.clear();
+			}
+			durableOps = covered;
+		}
+	}
+
+	/* writeBatch(FileChannel channel, ByteBuffer bytes):
+	 * Frames the batch with its length and checksum, appends it to the log and syncs it
+	 *
+	 * Other notes:
+	 * Called with flushLock held, but not the monitor, so writers are never blocked on the disk.
+	 */
+	private void writeBatch(FileChannel channel, ByteBuffer bytes) throws IOException {
+		bytes.flip();
+		if (!bytes.hasRemaining())
+			return;
+		crc.reset();
+		crc.update(bytes.duplicate());
+		ByteBuffer frame = ByteBuffer.allocate(8);
+		frame.putInt(bytes.remaining()).putInt((int) crc.getValue()).flip();
+		ByteBuffer[] parts = { frame, bytes };
+		while (bytes.hasRemaining())
+			channel.write(parts);
+		channel.force(false);
+	}
+
+	/**
+	 * <p>Rolls the log into a new snapshot. The current state is saved as the next generation's snapshot, an
+	 * empty log is started next to it, and the previous snapshot and log are deleted. Updates block while the
+	 * snapshot is written. A crash at any point leaves either the old or the new generation intact.</p>
+	 * @throws IOException if the snapshot or new log cannot be written.
+	 */
+	public void checkpoint() throws IOException {
+		synchronized (flushLock) {
+			sync();
+			synchronized (this) {
+				if (closed)
+					throw new IllegalStateException("Tree has been closed.");
+				long next = generation + 1;
+				Path tmp = directory.resolve("snapshot-" + next + ".tmp");
+				try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					tree.save(channel, codec);
+					channel.force(true);
+				}
+				Files.move(tmp, snapshotFile(directory, next), StandardCopyOption.ATOMIC_MOVE);
+				FileChannel nextLog = FileChannel.open(logFile(directory, next), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				writeHeader(nextLog);
+				StorageIO.forceDirectory(directory);
+				log.close();
+				log = nextLog;
+				generation = next;
+				// Updates made since the sync() above are in the snapshot already; logging them as well
+				// would replay them on top of it.
+				activeOut.flush();
+				active.bytes.clear();
+				durableOps = appendedOps;
+				removeStale(directory, next);
+			}
+		}
+	}
+
+	/**
+	 * Syncs every pending update, stops the background flusher and closes the log.
+	 * @throws IOException if the final sync fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		flusher.shutdown();
+		synchronized (flushLock) {
+			try {
+				sync();
+			} finally {
+				synchronized (this) {
+					closed = true;
+					log.close();
+				}
+			}
+		}
+	}
+}
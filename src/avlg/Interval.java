@@ -0,0 +1,84 @@
+package avlg;
+
+/**
+ * <p>An {@link Interval} is a closed range [start, end] of points, as stored in an {@link AVLGIntervalTree}.
+ * Intervals are ordered by start, then by end, which is the order the tree keeps them in.</p>
+ *
+ * @param <P> The type of the end points.
+ * @see AVLGIntervalTree
+ */
+public final class Interval<P extends Comparable<P>> implements Comparable<Interval<P>> {
+
+	private final P start;
+	private final P end;
+
+	/**
+	 * @param start The smallest point of the interval.
+	 * @param end The largest point of the interval.
+	 * @throws NullPointerException if start or end is null.
+	 * @throws IllegalArgumentException if end comes before start.
+	 */
+	public Interval(P start, P end) {
+		if (start == null || end == null)
+			throw new NullPointerException("End points must not be null.");
+		if (end.compareTo(start) < 0)
+			throw new IllegalArgumentException("Interval ends at " + end + ", before its start " + start + ".");
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return The smallest point of the interval.
+	 */
+	public P getStart() {
+		return start;
+	}
+
+	/**
+	 * @return The largest point of the interval.
+	 */
+	public P getEnd() {
+		return end;
+	}
+
+	/**
+	 * @param point A point.
+	 * @return {@code true} if start &le; point &le; end, {@code false} otherwise.
+	 */
+	public boolean contains(P point) {
+		return start.compareTo(point) <= 0 && end.compareTo(point) >= 0;
+	}
+
+	/**
+	 * @param lo The smallest point of the other range.
+	 * @param hi The largest point of the other range.
+	 * @return {@code true} if this interval and [lo, hi] share at least one point, {@code false} otherwise.
+	 */
+	public boolean overlaps(P lo, P hi) {
+		return start.compareTo(hi) <= 0 && end.compareTo(lo) >= 0;
+	}
+
+	@Override
+	public int compareTo(Interval<P> other) {
+		int cmp = start.compareTo(other.start);
+		return cmp != 0 ? cmp : end.compareTo(other.end);
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof Interval))
+			return false;
+		Interval<?> that = (Interval<?>) other;
+		return start.equals(that.start) && end.equals(that.end);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * start.hashCode() + end.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "[" + start + ", " + end + "]";
+	}
+}
@@ -0,0 +1,44 @@
+package avlg;
+
+import java.io.IOException;
+
+/**
+ * <p>A {@link KeyCodec} turns keys of an {@link AVLGTree} into bytes and back. Trees are always written in
+ * key order, so every call is handed the key written just before it (or {@code null} for the first one). Codecs
+ * for integral keys use it to store small deltas, and codecs for strings to share common prefixes.</p>
+ *
+ * <p>Ready-made codecs for {@link Integer}, {@link Long} and {@link String} keys live in {@link KeyCodecs}.
+ * Custom codecs should pick an {@link #id()} of 64 or more, so that they never clash with a built-in one.</p>
+ *
+ * @param <T> The type of key handled by this codec.
+ * @see KeyCodecs
+ * @see AVLGTree#save(java.nio.channels.WritableByteChannel, KeyCodec)
+ */
+public interface KeyCodec<T> {
+
+	/**
+	 * Identifies the codec in a saved tree's header, so that a file is never decoded with the wrong codec.
+	 * Anything that writes or reads a header throws {@link IllegalArgumentException} for an id that does not
+	 * fit in its single byte.
+	 * @return A number between 0 and 255.
+	 */
+	int id();
+
+	/**
+	 * Writes key to out.
+	 * @param key The key to write.
+	 * @param previous The key written just before this one, or {@code null} if this is the first one.
+	 * @param out Where to write the key.
+	 * @throws IOException if the underlying channel cannot be written to.
+	 */
+	void encode(T key, T previous, ChannelOutput out) throws IOException;
+
+	/**
+	 * Reads back a key written by {@link #encode(Object, Object, ChannelOutput)}.
+	 * @param previous The key read just before this one, or {@code null} if this is the first one.
+	 * @param in Where to read the key from.
+	 * @return The decoded key.
+	 * @throws IOException if the input is truncated or malformed.
+	 */
+	T decode(T previous, ChannelInput in) throws IOException;
+}
@@ -0,0 +1,173 @@
+package avlg;
+
+import avlg.exceptions.TreeFormatException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>{@link KeyCodecs} holds the built-in {@link KeyCodec}s. Integral keys are stored as varint deltas from the
+ * previous key, which takes a single byte per key for dense key sets. Strings are front-coded: each one
+ * stores how many characters it shares with the previous key, followed by the rest in UTF-8. Byte keys are
+ * front-coded the same way, in bytes.</p>
+ *
+ * @see KeyCodec
+ */
+public final class KeyCodecs {
+
+	private static final int READ_CHUNK = 1 << 16;
+
+	private KeyCodecs() {
+	}
+
+	/* idOf(KeyCodec<?> codec):
+	 * Returns codec's id, checked to fit the single header byte it is written to
+	 *
+	 * Other notes:
+	 * Called before anything is written, so that a codec with a bad id never leaves a file that cannot be
+	 * loaded back.
+	 */
+	static int idOf(KeyCodec<?> codec) {
+		int id = codec.id();
+		if (id < 0 || id > 255)
+			throw new IllegalArgumentException("Codec id " + id + " is not between 0 and 255.");
+		return id;
+	}
+
+	/* readLength(ChannelInput in):
+	 * Reads a varint that counts bytes or characters of a key
+	 *
+	 * Other notes:
+	 * Throws TreeFormatException for anything that does not fit in an int, rather than truncating it.
+	 */
+	private static int readLength(ChannelInput in) throws IOException {
+		long v = in.readVarLong();
+		if (v < 0 || v > Integer.MAX_VALUE)
+			throw new TreeFormatException("Malformed key length " + Long.toUnsignedString(v) + ".");
+		return (int) v;
+	}
+
+	/* readKey(ChannelInput in, byte[] previous, int shared, int length):
+	 * Reads a front-coded key: the first shared bytes of previous, then length bytes from in
+	 *
+	 * Other notes:
+	 * length comes from the input itself, so the array only grows as bytes actually arrive, READ_CHUNK at
+	 * first and doubling from there. A corrupt length then runs into the end of the input, after allocating
+	 * at most twice what was really there, instead of asking for up to 2 GiB up front.
+	 */
+	private static byte[] readKey(ChannelInput in, byte[] previous, int shared, int length) throws IOException {
+		int total = shared + length;
+		byte[] bytes = new byte[Math.min(total, shared + READ_CHUNK)];
+		if (shared > 0)
+			System.arraycopy(previous, 0, bytes, 0, shared);
+		int filled = shared;
+		while (filled < total) {
+			if (filled == bytes.length)
+				bytes = Arrays.copyOf(bytes, (int) Math.min(total, 2L * bytes.length));
+			in.readFully(bytes, filled, bytes.length - filled);
+			filled = bytes.length;
+		}
+		return bytes;
+	}
+
+	/** Delta/varint codec for {@link Integer} keys. */
+	public static final KeyCodec<Integer> INTEGER = new KeyCodec<Integer>() {
+		public int id() {
+			return 1;
+		}
+
+		public void encode(Integer key, Integer previous, ChannelOutput out) throws IOException {
+			if (previous == null)
+				out.writeVarLong(ChannelOutput.zigZag(key));
+			else
+				out.writeVarLong((long) key - previous);
+		}
+
+		public Integer decode(Integer previous, ChannelInput in) throws IOException {
+			if (previous == null)
+				return (int) ChannelInput.unZigZag(in.readVarLong());
+			return (int) (previous + in.readVarLong());
+		}
+	};
+
+	/** Delta/varint codec for {@link Long} keys. */
+	public static final KeyCodec<Long> LONG = new KeyCodec<Long>() {
+		public int id() {
+			return 2;
+		}
+
+		public void encode(Long key, Long previous, ChannelOutput out) throws IOException {
+			if (previous == null)
+				out.writeVarLong(ChannelOutput.zigZag(key));
+			else
+				out.writeVarLong(key - previous); // may wrap for huge gaps, but decoding wraps back the same way
+		}
+
+		public Long decode(Long previous, ChannelInput in) throws IOException {
+			if (previous == null)
+				return ChannelInput.unZigZag(in.readVarLong());
+			return previous + in.readVarLong();
+		}
+	};
+
+	/** Front-coded UTF-8 codec for {@link String} keys. */
+	public static final KeyCodec<String> STRING = new KeyCodec<String>() {
+		public int id() {
+			return 3;
+		}
+
+		public void encode(String key, String previous, ChannelOutput out) throws IOException {
+			int shared = 0;
+			if (previous != null) {
+				int max = Math.min(key.length(), previous.length());
+				while (shared < max && key.charAt(shared) == previous.charAt(shared))
+					shared++;
+				// Never split a surrogate pair between the shared prefix and the suffix.
+				if (shared > 0 && Character.isHighSurrogate(key.charAt(shared - 1)))
+					shared--;
+			}
+			byte[] suffix = key.substring(shared).getBytes(StandardCharsets.UTF_8);
+			out.writeVarLong(shared);
+			out.writeVarLong(suffix.length);
+			out.writeBytes(suffix, 0, suffix.length);
+		}
+
+		public String decode(String previous, ChannelInput in) throws IOException {
+			int shared = readLength(in);
+			int length = readLength(in);
+			if (shared > (previous == null ? 0 : previous.length()))
+				throw new TreeFormatException("Malformed string key.");
+			byte[] suffix = readKey(in, null, 0, length);
+			String rest = new String(suffix, StandardCharsets.UTF_8);
+			return shared == 0 ? rest : previous.substring(0, shared) + rest;
+		}
+	};
+
+	/** Front-coded codec for {@link ByteKey} keys. */
+	public static final KeyCodec<ByteKey> BYTES = new KeyCodec<ByteKey>() {
+		public int id() {
+			return 4;
+		}
+
+		public void encode(ByteKey key, ByteKey previous, ChannelOutput out) throws IOException {
+			int shared = 0;
+			if (previous != null) {
+				shared = Arrays.mismatch(key.bytes, previous.bytes);
+				if (shared < 0)
+					shared = key.bytes.length;
+			}
+			out.writeVarLong(shared);
+			out.writeVarLong(key.bytes.length - shared);
+			out.writeBytes(key.bytes, shared, key.bytes.length - shared);
+		}
+
+		public ByteKey decode(ByteKey previous, ChannelInput in) throws IOException {
+			int shared = readLength(in);
+			int length = readLength(in);
+			if (shared > (previous == null ? 0 : previous.bytes.length) || shared + length < 0)
+				throw new TreeFormatException("Malformed byte key.");
+			return ByteKey.wrap(readKey(in, shared == 0 ? null : previous.bytes, shared, length));
+		}
+	};
+}
@@ -0,0 +1,141 @@
+package avlg;
+
+import avlg.exceptions.InvalidBalanceException;
+
+/**
+ * <p>{@link LongAugmentedAVLGTree} is the {@code long} specialization of {@link AugmentedAVLGTree}: values and
+ * subtree summaries are stored as plain {@code long}s and combined with a {@link LongMonoid}, so neither updates
+ * nor {@link #aggregate(Comparable, Comparable)} ever box a value.</p>
+ *
+ * <p>Keys inserted with {@link #insert(Comparable)} rather than {@link #put(Comparable, long)} hold the identity.</p>
+ *
+ * @param <K> The type of key stored in the tree.
+ * @see AugmentedAVLGTree
+ * @see LongMonoid
+ */
+public class LongAugmentedAVLGTree<K extends Comparable<K>> extends AVLGTree<K> {
+
+	/* Node:
+	 * A tree node with its value and the summary of its subtree
+	 */
+	private final class Node extends TreeNode {
+		private long value;
+		private long summary;
+	}
+
+	private final LongMonoid monoid;
+
+	/**
+	 * @param maxImbalance The maximum imbalance allowed by the AVL-G Tree.
+	 * @param monoid How values are combined, for example {@link LongMonoid#SUM}.
+	 * @throws InvalidBalanceException if maxImbalance is a value smaller than 1.
+	 */
+	public LongAugmentedAVLGTree(int maxImbalance, LongMonoid monoid) throws InvalidBalanceException {
+		super(maxImbalance, false, true);
+		this.monoid = monoid;
+	}
+
+	@Override
+	TreeNode newNode() {
+		Node node = new Node();
+		node.value = monoid.identity();
+		node.summary = node.value;
+		return node;
+	}
+
+	/* node(TreeNode node):
+	 * Every node of this tree is a Node, made by newNode()
+	 */
+	private Node node(TreeNode node) {
+		return (Node) node;
+	}
+
+	private long summaryOf(TreeNode node) {
+		return node == null ? monoid.identity() : node(node).summary;
+	}
+
+	private long valueOf(TreeNode node) {
+		return node == null ? monoid.identity() : node(node).value;
+	}
+
+	/* Fold:
+	 * Combines the pieces of a range, as foldRange(..) hands them over, for aggregate(..)
+	 */
+	private final class Fold extends RangeFolder {
+		private long acc = monoid.identity();
+
+		@Override
+		void prepend(TreeNode node, TreeNode subtree) {
+			acc = monoid.combine(monoid.combine(valueOf(node), summaryOf(subtree)), acc);
+		}
+
+		@Override
+		void append(TreeNode subtree, TreeNode node) {
+			acc = monoid.combine(acc, monoid.combine(summaryOf(subtree), valueOf(node)));
+		}
+	}
+
+	@Override
+	void resetNode(TreeNode node) {
+		Node curr = node(node);
+		curr.value = monoid.identity();
+		curr.summary = curr.value;
+	}
+
+	@Override
+	void augment(TreeNode node) {
+		Node curr = node(node);
+		curr.summary = monoid.combine(monoid.combine(summaryOf(curr.lChild), curr.value), summaryOf(curr.rChild));
+	}
+
+	/**
+	 * Maps key to value, inserting key if it is not in the tree yet.
+	 * @param key The key.
+	 * @param value Its value.
+	 */
+	public void put(K key, long value) {
+		TreeNode at = descend(key);
+		int cmp = at == null ? 0 : key.compareTo(at.data);
+		if (at != null && cmp == 0) {
+			node(at).value = value;
+			augmentUp(at);
+			return;
+		}
+		Node fresh = node(makeNode());
+		fresh.data = key;
+		fresh.value = value;
+		fresh.summary = value;
+		linkAt(at, cmp, fresh);
+	}
+
+	/**
+	 * @param key The key to look up.
+	 * @param defaultValue What to return if key is not in the tree.
+	 * @return The value of key, or defaultValue if key is not in the tree.
+	 */
+	public long getOrDefault(K key, long defaultValue) {
+		TreeNode node = findNode(key);
+		return node == null ? defaultValue : node(node).value;
+	}
+
+	/**
+	 * <p>Combines, in key order, the values of all keys between lo and hi, both included. Only the two paths
+	 * from the root towards lo and hi are walked, so this costs O(height) whatever the size of the range.</p>
+	 * @param lo The smallest key of the range, or {@code null} to start at the smallest key.
+	 * @param hi The largest key of the range, or {@code null} to run to the largest key.
+	 * @return The combined values, or the identity if the range is empty.
+	 * @see AugmentedAVLGTree#aggregate(Comparable, Comparable)
+	 */
+	public long aggregate(K lo, K hi) {
+		Fold fold = new Fold();
+		foldRange(lo, hi, fold);
+		return fold.acc;
+	}
+
+	/**
+	 * @return The combined values of the whole tree, in O(1).
+	 */
+	public long aggregate() {
+		return summaryOf(rootNode());
+	}
+}
@@ -0,0 +1,53 @@
+package avlg;
+
+import java.util.function.LongBinaryOperator;
+
+/**
+ * <p>A {@link Monoid} over {@code long} values, for {@link LongAugmentedAVLGTree}. Aggregating through one never
+ * boxes a value.</p>
+ *
+ * @see Monoid
+ * @see LongAugmentedAVLGTree
+ */
+public interface LongMonoid {
+
+	/** Addition, with identity 0. Overflow wraps around, as with {@code +}. */
+	LongMonoid SUM = of(0, (a, b) -> a + b);
+
+	/** Minimum, with identity {@code Long.MAX_VALUE}. */
+	LongMonoid MIN = of(Long.MAX_VALUE, Math::min);
+
+	/** Maximum, with identity {@code Long.MIN_VALUE}. */
+	LongMonoid MAX = of(Long.MIN_VALUE, Math::max);
+
+	/**
+	 * @return The value that combines with any other value v into v, on either side.
+	 */
+	long identity();
+
+	/**
+	 * Combines two values; must be associative.
+	 * @param left The value of the smaller keys.
+	 * @param right The value of the larger keys.
+	 * @return The combined value.
+	 */
+	long combine(long left, long right);
+
+	/**
+	 * Makes a monoid out of an identity and an associative operator.
+	 * @param identity The identity of op.
+	 * @param op An associative operator.
+	 * @return The monoid.
+	 */
+	static LongMonoid of(long identity, LongBinaryOperator op) {
+		return new LongMonoid() {
+			public long identity() {
+				return identity;
+			}
+
+			public long combine(long left, long right) {
+				return op.applyAsLong(left, right);
+			}
+		};
+	}
+}
@@ -0,0 +1,50 @@
+package avlg;
+
+import java.util.function.BinaryOperator;
+
+/**
+ * <p>A {@link Monoid} is an associative way of combining values that has an identity, such as addition with
+ * zero, or taking a minimum with the largest value there is. {@link AugmentedAVLGTree} uses one to summarize
+ * every subtree, which only works because {@link #combine(Object, Object)} is associative: summaries can be
+ * grouped however the tree happens to be shaped. It need not be commutative, since values are always
+ * combined in key order.</p>
+ *
+ * <p>For {@code long} and {@code double} values, {@link LongMonoid} and {@link DoubleMonoid} avoid boxing.</p>
+ *
+ * @param <V> The type of value combined.
+ * @see AugmentedAVLGTree
+ */
+public interface Monoid<V> {
+
+	/**
+	 * @return The value that combines with any other value v into v, on either side.
+	 */
+	V identity();
+
+	/**
+	 * Combines two values; must be associative.
+	 * @param left The value of the smaller keys.
+	 * @param right The value of the larger keys.
+	 * @return The combined value.
+	 */
+	V combine(V left, V right);
+
+	/**
+	 * Makes a monoid out of an identity and an associative operator.
+	 * @param identity The identity of op.
+	 * @param op An associative operator.
+	 * @param <V> The type of value combined.
+	 * @return The monoid.
+	 */
+	static <V> Monoid<V> of(V identity, BinaryOperator<V> op) {
+		return new Monoid<V>() {
+			public V identity() {
+				return identity;
+			}
+
+			public V combine(V left, V right) {
+				return op.apply(left, right);
+			}
+		};
+	}
+}
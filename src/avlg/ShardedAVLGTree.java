@@ -0,0 +1,469 @@
+package avlg;
+
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>{@link ShardedAVLGTree} spreads its keys over a fixed number of independent {@link AVLGTree}s
+ * (<em>shards</em>), each covering a contiguous range of keys and guarded by its own read-write lock. Every
+ * operation locks only the shard that owns its key, so writers on different ranges never wait for each other,
+ * and there is no lock shared by all operations at all. With keys spread evenly over the shards, write
+ * throughput grows with the number of cores.</p>
+ *
+ * <p>Shard boundaries start out at the split points given to the constructor. When a shard grows past
+ * twice its fair share of the keys, the tree {@link #rebalance() rebalances}: all shards are locked, and the
+ * keys are redistributed so that every shard holds the same number of them. The new shards are bulk-built
+ * with {@link AVLGTree#fromSorted(int, Iterator, int)}, so a rebalance costs O(n), and it only happens
+ * after the tree has grown by a constant factor.</p>
+ *
+ * <p>Iteration visits all keys in ascending order, shard after shard, reading each shard in short slices
+ * under its read lock. It is weakly consistent: it never fails because of concurrent updates, and it
+ * reflects some, but not necessarily all, of the updates made while it runs.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTree
+ */
+public class ShardedAVLGTree<T extends Comparable<T>> implements Iterable<T> {
+
+	private static final int ITERATION_SLICE = 256;
+	private static final int MIN_SPLIT_THRESHOLD = 1024;
+
+	/* Shard:
+	 * One tree and its lock
+	 *
+	 * Other notes:
+	 * A rebalance retires a shard by setting retired under its write lock. Operations that find a retired
+	 * shard after locking it route their key again through the new layout.
+	 */
+	private static final class Shard<T extends Comparable<T>> {
+		private final AVLGTree<T> tree;
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private boolean retired;
+
+		private Shard(AVLGTree<T> tree) {
+			this.tree = tree;
+		}
+	}
+
+	/* Layout:
+	 * Immutable mapping from key ranges to shards
+	 *
+	 * Other notes:
+	 * Shard i holds the keys k with bounds[i - 1] <= k < bounds[i].
+	 */
+	private static final class Layout<T extends Comparable<T>> {
+		private final Shard<T>[] shards;
+		private final T[] bounds;
+		private final int splitThreshold;
+
+		private Layout(Shard<T>[] shards, T[] bounds, int splitThreshold) {
+			this.shards = shards;
+			this.bounds = bounds;
+			this.splitThreshold = splitThreshold;
+		}
+
+		/* indexOf(T key):
+		 * Binary search for the shard owning key
+		 */
+		private int indexOf(T key) {
+			int lo = 0, hi = bounds.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (key.compareTo(bounds[mid]) < 0)
+					hi = mid;
+				else
+					lo = mid + 1;
+			}
+			return lo;
+		}
+	}
+
+	private final int maxImbalance;
+	private final LongAdder count = new LongAdder();
+	private final Object rebalanceLock = new Object();
+	private volatile Layout<T> layout;
+
+	/**
+	 * <p>Creates a tree with one shard per range between consecutive split points, that is
+	 * {@code splitPoints.size() + 1} shards.</p>
+	 * @param maxImbalance The maximum imbalance of every shard.
+	 * @param splitPoints The initial shard boundaries, in strictly ascending order.
+	 * @throws InvalidBalanceException if maxImbalance is smaller than 1.
+	 * @throws IllegalArgumentException if the split points are not strictly ascending.
+	 */
+	public ShardedAVLGTree(int maxImbalance, List<T> splitPoints) throws InvalidBalanceException {
+		if (maxImbalance < 1)
+			throw new InvalidBalanceException("Max imbalance must be greater than or equal to 1.");
+		for (int i = 1; i < splitPoints.size(); i++) {
+			if (splitPoints.get(i - 1).compareTo(splitPoints.get(i)) >= 0)
+				throw new IllegalArgumentException("Split points must be strictly ascending.");
+		}
+		this.maxImbalance = maxImbalance;
+		Shard<T>[] shards = newShards(splitPoints.size() + 1);
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new Shard<T>(new AVLGTree<T>(maxImbalance));
+		@SuppressWarnings("unchecked")
+		T[] bounds = (T[]) splitPoints.toArray(new Comparable<?>[0]);
+		this.layout = new Layout<>(shards, bounds, MIN_SPLIT_THRESHOLD);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Comparable<T>> Shard<T>[] newShards(int n) {
+		return (Shard<T>[]) new Shard<?>[n];
+	}
+
+	/* lockOwner(T key, boolean write):
+	 * Locks and returns the live shard owning key
+	 *
+	 * Other notes:
+	 * Retries if a rebalance retired the shard while we were waiting for its lock.
+	 */
+	private Shard<T> lockOwner(T key, boolean write) {
+		while (true) {
+			Layout<T> current = layout;
+			Shard<T> shard = current.shards[current.indexOf(key)];
+			if (write)
+				shard.lock.writeLock().lock();
+			else
+				shard.lock.readLock().lock();
+			if (!shard.retired)
+				return shard;
+			unlock(shard, write);
+		}
+	}
+
+	private static void unlock(Shard<?> shard, boolean write) {
+		if (write)
+			shard.lock.writeLock().unlock();
+		else
+			shard.lock.readLock().unlock();
+	}
+
+	/**
+	 * Inserts key into the shard that owns it.
+	 * @param key The key to insert.
+	 * @see AVLGTree#insert(Comparable)
+	 */
+	public void insert(T key) {
+		Shard<T> shard = lockOwner(key, true);
+		int shardCount;
+		try {
+			int before = shard.tree.getCount();
+			shard.tree.insert(key);
+			shardCount = shard.tree.getCount();
+			count.add(shardCount - before);
+		} finally {
+			unlock(shard, true);
+		}
+		if (shardCount > layout.splitThreshold)
+			rebalance();
+	}
+
+	/**
+	 * Deletes key from the shard that owns it.
+	 * @param key The key to delete.
+	 * @return The key that was removed, or {@code null} if the key was not found.
+	 * @throws EmptyTreeException if the whole tree is empty.
+	 * @see AVLGTree#delete(Comparable)
+	 */
+	public T delete(T key) throws EmptyTreeException {
+		Shard<T> shard = lockOwner(key, true);
+		try {
+			if (shard.tree.isEmpty()) {
+				if (isEmpty())
+					throw new EmptyTreeException("Tree is empty.");
+				return null;
+			}
+			int before = shard.tree.getCount();
+			T removed = shard.tree.delete(key);
+			count.add(shard.tree.getCount() - before);
+			return removed;
+		} finally {
+			unlock(shard, true);
+		}
+	}
+
+	/**
+	 * Searches the shard that owns key. Searches only take a read lock, so they run in parallel.
+	 * @param key The key to search for.
+	 * @return key if key is in the tree, or {@code null} otherwise.
+	 * @throws EmptyTreeException if the whole tree is empty.
+	 * @see AVLGTree#search(Comparable)
+	 */
+	public T search(T key) throws EmptyTreeException {
+		Shard<T> shard = lockOwner(key, false);
+		try {
+			if (shard.tree.isEmpty()) {
+				if (isEmpty())
+					throw new EmptyTreeException("Tree is empty.");
+				return null;
+			}
+			return shard.tree.search(key);
+		} finally {
+			unlock(shard, false);
+		}
+	}
+
+	/**
+	 * Empties every shard. Shard boundaries are kept.
+	 */
+	public void clear() {
+		synchronized (rebalanceLock) {
+			for (Shard<T> shard : layout.shards) {
+				shard.lock.writeLock().lock();
+				try {
+					count.add(-shard.tree.getCount());
+					shard.tree.clear();
+				} finally {
+					shard.lock.writeLock().unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The number of elements in the tree. Under concurrent updates, this is only a snapshot.
+	 */
+	public int getCount() {
+		return (int) count.sum();
+	}
+
+	/**
+	 * @return {@code true} if the tree holds no elements, {@code false} otherwise.
+	 */
+	public boolean isEmpty() {
+		return count.sum() == 0;
+	}
+
+	/**
+	 * @return The maximum imbalance of every shard.
+	 */
+	public int getMaxImbalance() {
+		return maxImbalance;
+	}
+
+	/**
+	 * @return The number of shards, which never changes.
+	 */
+	public int getShardCount() {
+		return layout.shards.length;
+	}
+
+	/**
+	 * @return The number of elements in each shard, in key order.
+	 */
+	public int[] getShardSizes() {
+		Shard<T>[] shards = layout.shards;
+		int[] sizes = new int[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i].lock.readLock().lock();
+			try {
+				sizes[i] = shards[i].tree.getCount();
+			} finally {
+				shards[i].lock.readLock().unlock();
+			}
+		}
+		return sizes;
+	}
+
+	/**
+	 * <p>Checks every shard with {@link AVLGTree#validate()}, each under its read lock. Rebalancing waits
+	 * until all shards are checked, so the reports all describe the same layout.</p>
+	 * @return One report per shard, in key order.
+	 */
+	public List<ValidationReport<T>> validate() {
+		synchronized (rebalanceLock) {
+			Shard<T>[] shards = layout.shards;
+			List<ValidationReport<T>> reports = new ArrayList<>(shards.length);
+			for (Shard<T> shard : shards) {
+				shard.lock.readLock().lock();
+				try {
+					reports.add(shard.tree.validate());
+				} finally {
+					shard.lock.readLock().unlock();
+				}
+			}
+			return reports;
+		}
+	}
+
+	/**
+	 * <p>Moves shard boundaries so that every shard holds the same number of keys, if any shard holds more
+	 * than twice its fair share. All shards are write-locked while keys move; lookups and updates resume on
+	 * the new shards as soon as it is done. This is called automatically whenever a shard grows past the
+	 * current threshold.</p>
+	 */
+	public void rebalance() {
+		synchronized (rebalanceLock) {
+			Layout<T> old = layout;
+			Shard<T>[] shards = old.shards;
+			for (Shard<T> shard : shards)
+				shard.lock.writeLock().lock();
+			try {
+				int total = 0, largest = 0;
+				for (Shard<T> shard : shards) {
+					total += shard.tree.getCount();
+					largest = Math.max(largest, shard.tree.getCount());
+				}
+				int fairShare = (total + shards.length - 1) / shards.length;
+				if (largest <= 2 * fairShare || total < shards.length) {
+					// Not skewed: look again once the largest shard has grown by another half share.
+					layout = new Layout<>(shards, old.bounds,
+							Math.max(MIN_SPLIT_THRESHOLD, largest + fairShare / 2 + 1));
+					return;
+				}
+				layout = redistribute(shards, total, Math.max(MIN_SPLIT_THRESHOLD, 2 * fairShare));
+				for (Shard<T> shard : shards)
+					shard.retired = true;
+			} finally {
+				for (Shard<T> shard : shards)
+					shard.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	/* redistribute(Shard<T>[] shards, int total, int threshold):
+	 * Builds new shards holding an equal share of the keys of the old ones
+	 *
+	 * Parameters:
+	 * shards - the current shards, all write-locked
+	 * total - number of keys across them
+	 * threshold - split threshold of the new layout
+	 *
+	 * Other notes:
+	 * Keys stream straight from the old shards into the new ones, in order, without being copied into an
+	 * intermediate array. The smallest key of each new shard becomes its lower bound.
+	 * Returns the new layout.
+	 */
+	private Layout<T> redistribute(Shard<T>[] shards, int total, int threshold) {
+		List<Iterator<T>> parts = new ArrayList<>(shards.length);
+		for (Shard<T> shard : shards)
+			parts.add(shard.tree.iterator());
+		PeekingConcatenation<T> keys = new PeekingConcatenation<>(parts);
+		Shard<T>[] fresh = newShards(shards.length);
+		@SuppressWarnings("unchecked")
+		T[] bounds = (T[]) new Comparable<?>[shards.length - 1];
+		for (int i = 0; i < fresh.length; i++) {
+			int share = (int) ((long) total * (i + 1) / fresh.length - (long) total * i / fresh.length);
+			if (i > 0)
+				bounds[i - 1] = keys.peek();
+			try {
+				fresh[i] = new Shard<T>(AVLGTree.<T>fromSorted(maxImbalance, keys, share));
+			} catch (InvalidBalanceException e) {
+				throw new IllegalStateException(e); // maxImbalance was validated by the constructor
+			}
+		}
+		return new Layout<>(fresh, bounds, threshold);
+	}
+
+	/* PeekingConcatenation:
+	 * Iterator over several iterators one after the other, able to look at the next key without consuming it
+	 */
+	private static final class PeekingConcatenation<T> implements Iterator<T> {
+		private final Iterator<Iterator<T>> parts;
+		private Iterator<T> current;
+		private T next;
+
+		private PeekingConcatenation(List<Iterator<T>> parts) {
+			this.parts = parts.iterator();
+			this.current = null;
+			advance();
+		}
+
+		private void advance() {
+			while ((current == null || !current.hasNext()) && parts.hasNext())
+				current = parts.next();
+			next = (current != null && current.hasNext()) ? current.next() : null;
+		}
+
+		private T peek() {
+			return next;
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public T next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			T key = next;
+			advance();
+			return key;
+		}
+	}
+
+	/**
+	 * <p>Returns a weakly consistent iterator over all keys, in ascending order. Shards are read in slices
+	 * of a few hundred keys under their read lock, and the iterator resumes each slice after the last key it
+	 * returned, so it keeps working across rebalances.</p>
+	 * @return An in-order iterator.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return new SliceIterator();
+	}
+
+	/* SliceIterator:
+	 * Weakly consistent iterator that copies a slice of keys at a time
+	 */
+	private final class SliceIterator implements Iterator<T> {
+		private final ArrayList<T> slice = new ArrayList<>(ITERATION_SLICE);
+		private int position;
+		private T last;
+		private boolean exhausted;
+
+		public boolean hasNext() {
+			if (position < slice.size())
+				return true;
+			if (!exhausted)
+				fill();
+			return position < slice.size();
+		}
+
+		public T next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			last = slice.get(position++);
+			return last;
+		}
+
+		/* fill():
+		 * Copies the next slice of keys, starting after the last key returned
+		 */
+		private void fill() {
+			slice.clear();
+			position = 0;
+			while (true) {
+				Layout<T> current = layout;
+				int i = last == null ? 0 : current.indexOf(last);
+				boolean moved = false;
+				for (; i < current.shards.length && slice.isEmpty(); i++) {
+					Shard<T> shard = current.shards[i];
+					shard.lock.readLock().lock();
+					try {
+						if (shard.retired) {
+							moved = true;
+							break;
+						}
+						shard.tree.scan(last, false, null, false, ITERATION_SLICE, slice::add);
+					} finally {
+						shard.lock.readLock().unlock();
+					}
+				}
+				if (!moved) {
+					exhausted = slice.isEmpty();
+					return;
+				}
+				slice.clear();
+			}
+		}
+	}
+}
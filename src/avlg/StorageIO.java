@@ -0,0 +1,62 @@
+package avlg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>{@link StorageIO} holds the file helpers shared by the trees that keep their keys on disk: an in-memory
+ * channel that records are encoded into before being written out whole, and a way to make renames
+ * durable.</p>
+ *
+ * @see DurableAVLGTree
+ * @see TieredAVLGTree
+ */
+final class StorageIO {
+
+	private StorageIO() {
+	}
+
+	/* ByteSink:
+	 * Growable in-memory channel that records are encoded into before they are written out whole
+	 *
+	 * Other notes:
+	 * bytes holds everything written since it was last cleared, from 0 up to its position.
+	 */
+	static final class ByteSink implements WritableByteChannel {
+		ByteBuffer bytes = ByteBuffer.allocate(1 << 12);
+
+		public int write(ByteBuffer src) {
+			int n = src.remaining();
+			if (bytes.remaining() < n) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(bytes.capacity() * 2, bytes.position() + n));
+				bytes.flip();
+				grown.put(bytes);
+				bytes = grown;
+			}
+			bytes.put(src);
+			return n;
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public void close() {
+		}
+	}
+
+	/* forceDirectory(Path directory):
+	 * Makes a rename in directory durable, where the platform supports syncing directories
+	 */
+	static void forceDirectory(Path directory) {
+		try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+			dir.force(true);
+		} catch (IOException e) {
+			// Not supported on every platform; the rename itself is still atomic.
+		}
+	}
+}
@@ -3,8 +3,28 @@ package avlg;
 import org.junit.Test;
 import avlg.exceptions.EmptyTreeException;
 import avlg.exceptions.InvalidBalanceException;
+import avlg.exceptions.TreeFormatException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -24,6 +44,14 @@ public class StudentTests {
     private Random r  = new Random(SEED);
     private AVLGTree<Integer> tree;
 
+    /* Deletes a temporary directory and everything in it, for the tests of trees that live on disk. */
+    private static void deleteRecursively(Path dir) throws IOException {
+    	try (Stream<Path> paths = Files.walk(dir)) {
+    		for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+    			Files.deleteIfExists(path);
+    	}
+    }
+
     /* This test creates a simple AVL-1 tree and inserts three integers in descending order (like our first class example).
      * In this scenario, your code should perform a right rotation about the root. So the new root should be the former left
      * child, while the tree's total height should be 1.
@@ -319,7 +347,800 @@ public class StudentTests {
     public void testisBST() throws InvalidBalanceException {
     	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
 
-    	assertFalse(tree.testBSTProperty(new Integer[] {10,30,20}));
+    	assertFalse(tree.testBSTProperty(new Integer[] {10,30,20}, 0));
+    }
+    
+    @Test
+    public void testSaveLoadRoundTrip() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(3);
+    	for (int i = 0; i < NUMS; i++)
+    		tree.insert(r.nextInt());
+    	Path file = Files.createTempFile("avlg", ".tree");
+    	try {
+    		tree.save(file, KeyCodecs.INTEGER);
+    		AVLGTree<Integer> loaded = AVLGTree.load(file, KeyCodecs.INTEGER);
+    		assertEquals(3, loaded.getMaxImbalance());
+    		assertEquals(tree.getCount(), loaded.getCount());
+    		assertTrue(loaded.isBST());
+    		// A bulk-loaded tree is as short as a binary tree can be.
+    		assertTrue(loaded.getHeight() <= tree.getHeight());
+    		r = new Random(SEED);
+    		for (int i = 0; i < NUMS; i++) {
+    			Integer key = r.nextInt();
+    			assertEquals(key, loaded.search(key));
+    		}
+    	} finally {
+    		Files.delete(file);
+    	}
+    }
+    
+    @Test
+    public void testLoadRejectsOversizedKey() throws InvalidBalanceException, IOException {
+    	AVLGTree<String> tree = new AVLGTree<String>(1);
+    	tree.insert("a");
+    	ByteArrayOutputStream saved = new ByteArrayOutputStream();
+    	tree.save(Channels.newChannel(saved), KeyCodecs.STRING);
+    	byte[] bytes = saved.toByteArray();
+    	// The only key is stored as shared 0, length 1, 'a'; claim a length of 2^31 - 1 instead.
+    	byte[] corrupt = Arrays.copyOf(bytes, bytes.length + 3);
+    	System.arraycopy(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07}, 0, corrupt,
+    			bytes.length - 2, 5);
+    	try {
+    		AVLGTree.load(Channels.newChannel(new ByteArrayInputStream(corrupt)), KeyCodecs.STRING);
+    		fail("A key longer than the file should have been rejected.");
+    	} catch (TreeFormatException e) {
+    		// Expected, without allocating the length claimed.
+    	}
+    }
+    
+    @Test
+    public void testLoadRejectsUnknownFlags() throws InvalidBalanceException, IOException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	tree.insert(1);
+    	ByteArrayOutputStream saved = new ByteArrayOutputStream();
+    	tree.save(Channels.newChannel(saved), KeyCodecs.INTEGER);
+    	byte[] bytes = saved.toByteArray();
+    	bytes[6] |= 0x80; // flags follow the magic, version and codec id
+    	try {
+    		AVLGTree.load(Channels.newChannel(new ByteArrayInputStream(bytes)), KeyCodecs.INTEGER);
+    		fail("A flag this version does not know should have been rejected.");
+    	} catch (TreeFormatException e) {
+    		// Expected.
+    	}
+    }
+    
+    @Test
+    public void testSaveRejectsCodecIdOutOfRange() throws InvalidBalanceException, IOException {
+    	KeyCodec<Integer> wide = new KeyCodec<Integer>() {
+    		public int id() {
+    			return 300;
+    		}
+    		public void encode(Integer key, Integer previous, ChannelOutput out) throws IOException {
+    			KeyCodecs.INTEGER.encode(key, previous, out);
+    		}
+    		public Integer decode(Integer previous, ChannelInput in) throws IOException {
+    			return KeyCodecs.INTEGER.decode(previous, in);
+    		}
+    	};
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	tree.insert(1);
+    	ByteArrayOutputStream saved = new ByteArrayOutputStream();
+    	try {
+    		tree.save(Channels.newChannel(saved), wide);
+    		fail("An id that does not fit in a byte should have been rejected.");
+    	} catch (IllegalArgumentException e) {
+    		// Nothing may have been written before the check.
+    		assertEquals(0, saved.size());
+    	}
+    }
+    
+    @Test
+    public void testDurableTreeRecovery() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	Path dir = Files.createTempDirectory("avlg-wal");
+    	try {
+    		DurableAVLGTree<Integer> durable = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 10);
+    		for (int i = 0; i < 100; i++)
+    			durable.insert(i);
+    		durable.checkpoint();
+    		for (int i = 0; i < 50; i++)
+    			durable.delete(i);
+    		durable.insert(500);
+    		durable.sync();
+    		// Not closed yet: reopening must recover from the snapshot plus the log, as after a crash.
+    		try {
+    			DurableAVLGTree<Integer> recovered = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 10);
+    			assertEquals(51, recovered.getCount());
+    			assertNull(recovered.search(10));
+    			assertEquals(Integer.valueOf(75), recovered.search(75));
+    			assertEquals(Integer.valueOf(500), recovered.search(500));
+    			recovered.close();
+    		} finally {
+    			durable.close(); // nothing is pending, so this writes nothing
+    		}
+    	} finally {
+    		deleteRecursively(dir);
+    	}
+    }
+    
+    @Test
+    public void testDurableTreeDropsTornBatch() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	Path dir = Files.createTempDirectory("avlg-wal");
+    	Path log = dir.resolve("wal-0.log");
+    	try {
+    		// A long flush interval, so that batches end exactly at each sync().
+    		DurableAVLGTree<Integer> durable = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 60000);
+    		for (int i = 0; i < 10; i++)
+    			durable.insert(i);
+    		durable.sync();
+    		for (int i = 10; i < 20; i++)
+    			durable.insert(i);
+    		durable.close();
+    		// Cut the last batch short, as if the process died while writing it.
+    		byte[] bytes = Files.readAllBytes(log);
+    		Files.write(log, Arrays.copyOf(bytes, bytes.length - 3));
+    		DurableAVLGTree<Integer> recovered = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 60000);
+    		assertEquals(10, recovered.getCount());
+    		assertEquals(Integer.valueOf(9), recovered.search(9));
+    		assertNull(recovered.search(10));
+    		recovered.insert(100);
+    		recovered.close();
+    		// Garbage after the last complete batch must be dropped the same way.
+    		bytes = Files.readAllBytes(log);
+    		bytes = Arrays.copyOf(bytes, bytes.length + 5);
+    		Arrays.fill(bytes, bytes.length - 5, bytes.length, (byte) 0x5A);
+    		Files.write(log, bytes);
+    		recovered = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 60000);
+    		assertEquals(11, recovered.getCount());
+    		assertEquals(Integer.valueOf(100), recovered.search(100));
+    		recovered.insert(200);
+    		recovered.close();
+    		recovered = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 60000);
+    		assertEquals(12, recovered.getCount());
+    		assertEquals(Integer.valueOf(200), recovered.search(200));
+    		recovered.close();
+    	} finally {
+    		deleteRecursively(dir);
+    	}
+    }
+    
+    @Test
+    public void testDurableLogSkipsRejectedKey() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	Path dir = Files.createTempDirectory("avlg-wal");
+    	try {
+    		DurableAVLGTree<Integer> durable = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 10);
+    		durable.insert(1);
+    		try {
+    			durable.insert(null);
+    			fail("The codec should have rejected a null key.");
+    		} catch (NullPointerException e) {
+    			// The batch must not keep a record without its key.
+    		}
+    		durable.insert(2);
+    		durable.sync();
+    		durable.close();
+    		DurableAVLGTree<Integer> recovered = DurableAVLGTree.open(dir, 2, KeyCodecs.INTEGER, 10);
+    		assertEquals(2, recovered.getCount());
+    		assertEquals(Integer.valueOf(2), recovered.search(2));
+    		recovered.close();
+    	} finally {
+    		deleteRecursively(dir);
+    	}
+    }
+    
+    @Test
+    public void testShardedRebalanceAndOrder() throws InvalidBalanceException, EmptyTreeException {
+    	// All keys land in the first shard, which must trigger a rebalance.
+    	ShardedAVLGTree<Integer> sharded = new ShardedAVLGTree<>(1, Arrays.asList(1000000, 2000000, 3000000));
+    	for (int i = 0; i < 5 * NUMS; i++)
+    		sharded.insert(r.nextInt(1000000));
+    	int[] sizes = sharded.getShardSizes();
+    	for (int shardSize : sizes)
+    		assertTrue("Shards were not rebalanced: " + Arrays.toString(sizes), shardSize > 0);
+    	List<Integer> keys = new ArrayList<>();
+    	for (Integer key : sharded)
+    		keys.add(key);
+    	assertEquals(sharded.getCount(), keys.size());
+    	for (int i = 1; i < keys.size(); i++)
+    		assertTrue(keys.get(i - 1) < keys.get(i));
+    	assertEquals(keys.get(0), sharded.search(keys.get(0)));
+    }
+    
+    @Test
+    public void testShardedConcurrentWritersAcrossRebalance() throws InvalidBalanceException, InterruptedException {
+    	// Every key lands in the first shard, so the writers force rebalances while they run.
+    	ShardedAVLGTree<Integer> sharded = new ShardedAVLGTree<>(1, Arrays.asList(1000000, 2000000, 3000000));
+    	int writers = 4, perWriter = 5000;
+    	CountDownLatch start = new CountDownLatch(1);
+    	List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    	List<Thread> threads = new ArrayList<>();
+    	for (int t = 0; t < writers; t++) {
+    		final int id = t;
+    		threads.add(new Thread(() -> {
+    			List<Integer> keys = new ArrayList<>();
+    			for (int i = 0; i < perWriter; i++)
+    				keys.add(i * writers + id);
+    			Collections.shuffle(keys, new Random(SEED + id));
+    			try {
+    				start.await();
+    				for (int i = 0; i < keys.size(); i++) {
+    					sharded.insert(keys.get(i));
+    					// Delete every third key soon after it went in, while the others keep inserting.
+    					if (i % 3 == 2)
+    						assertEquals(keys.get(i - 2), sharded.delete(keys.get(i - 2)));
+    				}
+    			} catch (Throwable e) {
+    				errors.add(e);
+    			}
+    		}));
+    	}
+    	for (Thread thread : threads)
+    		thread.start();
+    	start.countDown();
+    	for (Thread thread : threads)
+    		thread.join();
+    	assertTrue(errors.toString(), errors.isEmpty());
+    	int expected = writers * (perWriter - perWriter / 3);
+    	assertEquals(expected, sharded.getCount());
+    	int[] sizes = sharded.getShardSizes();
+    	for (int shardSize : sizes)
+    		assertTrue("Shards were not rebalanced: " + Arrays.toString(sizes), shardSize > 0);
+    	List<Integer> keys = new ArrayList<>();
+    	for (Integer key : sharded)
+    		keys.add(key);
+    	assertEquals(expected, keys.size());
+    	for (int i = 1; i < keys.size(); i++)
+    		assertTrue(keys.get(i - 1) < keys.get(i));
+    	for (ValidationReport<Integer> report : sharded.validate())
+    		assertTrue(report.toString(), report.isValid());
+    }
+    
+    @Test
+    public void testIngestorAppliesEveryProducer() throws Exception {
+    	AVLGTree<Integer> tree = new AVLGTree<>(2);
+    	AVLGTreeIngestor<Integer> ingestor = new AVLGTreeIngestor<>(tree, 64, 16, Thread::new);
+    	Thread[] producers = new Thread[4];
+    	for (int p = 0; p < producers.length; p++) {
+    		final int base = p * NUMS;
+    		producers[p] = new Thread(() -> {
+    			for (int i = 0; i < NUMS; i++)
+    				ingestor.insert(base + i);
+    		});
+    		producers[p].start();
+    	}
+    	for (Thread producer : producers)
+    		producer.join();
+    	// Operations on the same key keep their order, whatever the sort does to the batch.
+    	ingestor.insert(-1);
+    	CompletableFuture<Integer> deleted = ingestor.delete(-1);
+    	CompletableFuture<Integer> searched = ingestor.search(-1);
+    	ingestor.close();
+    	assertEquals(Integer.valueOf(-1), deleted.get());
+    	assertNull(searched.get());
+    	assertEquals(4 * NUMS, tree.getCount());
+    }
+    
+    @Test
+    public void testIngestorKeepsProducerOrderNearEmpty() throws Exception {
+    	AVLGTree<Integer> tree = new AVLGTree<>(2);
+    	AVLGTreeIngestor<Integer> ingestor = new AVLGTreeIngestor<>(tree, 64, 16, Thread::new);
+    	try {
+    		ingestor.insert(null);
+    		fail("A null key should have been rejected before it was enqueued.");
+    	} catch (NullPointerException e) {
+    		// Expected.
+    	}
+    	// Sorted by key, these would search and delete before the insertion and find the tree empty.
+    	CompletableFuture<Boolean> inserted = ingestor.insert(10);
+    	CompletableFuture<Integer> searched = ingestor.search(5);
+    	CompletableFuture<Integer> deleted = ingestor.delete(5);
+    	ingestor.close();
+    	assertTrue(inserted.get());
+    	assertNull(searched.get());
+    	assertNull(deleted.get());
+    	assertEquals(1, tree.getCount());
+    }
+    
+    @Test
+    public void testPublisherHonoursDemand() throws Exception {
+    	AVLGTree<Integer> tree = new AVLGTree<>(1);
+    	for (int i = 0; i < NUMS; i++)
+    		tree.insert(i);
+    	List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+    	CountDownLatch completed = new CountDownLatch(1);
+    	AVLGTreePublisher.range(tree, new ReentrantLock(), 100, 199).subscribe(new Flow.Subscriber<Integer>() {
+    		private Flow.Subscription subscription;
+    		
+    		public void onSubscribe(Flow.Subscription subscription) {
+    			this.subscription = subscription;
+    			subscription.request(3);
+    		}
+    		
+    		public void onNext(Integer key) {
+    			received.add(key);
+    			if (received.size() % 3 == 0)
+    				subscription.request(3); // never more than three keys in flight
+    		}
+    		
+    		public void onError(Throwable t) {
+    			fail("Scan failed with " + t);
+    		}
+    		
+    		public void onComplete() {
+    			completed.countDown();
+    		}
+    	});
+    	assertTrue("Range scan did not complete.", completed.await(10, TimeUnit.SECONDS));
+    	assertEquals(100, received.size());
+    	for (int i = 0; i < received.size(); i++)
+    		assertEquals(Integer.valueOf(100 + i), received.get(i));
+    }
+    
+    @Test
+    public void testPublisherStopsAfterThrowingSubscriber() throws InvalidBalanceException {
+    	AVLGTree<Integer> tree = new AVLGTree<>(1);
+    	for (int i = 0; i < NUMS; i++)
+    		tree.insert(i);
+    	List<String> signals = new ArrayList<>();
+    	// Runs every signal on the calling thread, so all of them have been sent once subscribe() returns.
+    	new AVLGTreePublisher<>(tree, null, null, true, null, true, Runnable::run, 4).subscribe(
+    			new Flow.Subscriber<Integer>() {
+    		public void onSubscribe(Flow.Subscription subscription) {
+    			subscription.request(10);
+    		}
+    		
+    		public void onNext(Integer key) {
+    			signals.add("onNext");
+    			throw new IllegalStateException("Subscriber failed.");
+    		}
+    		
+    		public void onError(Throwable t) {
+    			signals.add("onError");
+    		}
+    		
+    		public void onComplete() {
+    			signals.add("onComplete");
+    		}
+    	});
+    	assertEquals(Collections.singletonList("onNext"), signals);
+    }
+    
+    @Test
+    public void testValidateAfterChurn() throws InvalidBalanceException, EmptyTreeException {
+    	for (int g = 1; g <= 4; g++) {
+    		AVLGTree<Integer> tree = new AVLGTree<>(g);
+    		for (int i = 0; i < 10 * NUMS; i++) {
+    			int key = r.nextInt(NUMS);
+    			if (r.nextBoolean() || tree.isEmpty())
+    				tree.insert(key);
+    			else
+    				tree.delete(key);
+    		}
+    		ValidationReport<Integer> report = tree.validate();
+    		assertTrue("AVL-" + g + " tree failed validation: " + report, report.isValid());
+    		assertEquals(tree.getCount(), report.getNodeCount());
+    		assertEquals(tree.getHeight(), report.getHeight());
+    		assertTrue(tree.validateParallel(ForkJoinPool.commonPool()).isValid());
+    	}
+    }
+    
+    @Test
+    public void testValidateReportsOrderViolations() throws InvalidBalanceException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	tree.testBSTProperty(new Integer[] {10, 30, 20}, 0); // builds with reversed comparisons
+    	ValidationReport<Integer> report = tree.validate();
+    	assertFalse(report.isValid());
+    	assertEquals(2, report.getViolationCount(ValidationReport.Kind.ORDER));
+    }
+
+    @Test
+    public void testValidateLongChain() throws Exception {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	Integer[] keys = new Integer[5000];
+    	for (int i = 0; i < keys.length; i++)
+    		keys[i] = i;
+    	tree.testBSTProperty(keys, 0); // every key goes left of the last: a single chain
+    	List<ValidationReport<Integer>> reports = Collections.synchronizedList(new ArrayList<>());
+    	// On a 64 KiB stack, any recursion down the chain overflows.
+    	Thread validator = new Thread(null, () -> reports.add(tree.validate()), "validator", 1 << 16);
+    	validator.start();
+    	validator.join();
+    	assertEquals("validate() did not return a report", 1, reports.size());
+    	assertEquals(keys.length, reports.get(0).getNodeCount());
+    	assertEquals(keys.length - 1, reports.get(0).getHeight());
+    	assertFalse(reports.get(0).isValid());
+    	ForkJoinPool pool = new ForkJoinPool(2);
+    	try {
+    		ValidationReport<Integer> parallel = tree.validateParallel(pool);
+    		assertEquals(keys.length, parallel.getNodeCount());
+    		assertEquals(reports.get(0).getViolations().size(), parallel.getViolations().size());
+    	} finally {
+    		pool.shutdown();
+    	}
+    }
+
+    @Test
+    public void testMultisetCountStopsAtIntLimit() throws InvalidBalanceException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(2, true);
+    	tree.insert(7);
+    	tree.rootNode().count = Integer.MAX_VALUE - 1; // rather than two billion insertions
+    	tree.insert(7);
+    	assertEquals(Integer.MAX_VALUE, tree.count(7));
+    	try {
+    		tree.insert(7);
+    		fail("The count should not have wrapped around.");
+    	} catch (IllegalStateException e) {
+    		assertEquals(Integer.MAX_VALUE, tree.count(7));
+    	}
+    	AVLGTree<Integer>.Cursor cursor = tree.cursor();
+    	try {
+    		cursor.insert(7);
+    		fail("The count should not have wrapped around.");
+    	} catch (IllegalStateException e) {
+    		assertEquals(Integer.MAX_VALUE, tree.count(7));
+    	}
+    }
+
+    @Test
+    public void testMultisetCounts() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(2, true);
+    	for (int i = 0; i < 200; i++)
+    		tree.insert(i % 50);
+    	assertEquals(50, tree.getCount());
+    	assertEquals(200, tree.getTotalCount());
+    	assertEquals(4, tree.count(7));
+    	assertEquals(0, tree.count(50));
+    	for (int i = 0; i < 3; i++)
+    		assertEquals(Integer.valueOf(7), tree.delete(7));
+    	assertEquals(1, tree.count(7));
+    	assertEquals(50, tree.getCount());
+    	tree.delete(7);
+    	assertEquals(0, tree.count(7));
+    	assertEquals(49, tree.getCount());
+    	assertEquals(196, tree.getTotalCount());
+    	assertTrue(tree.validate().isValid());
+    	
+    	Path file = Files.createTempFile("multiset", ".avlg");
+    	try {
+    		tree.save(file, KeyCodecs.INTEGER);
+    		AVLGTree<Integer> loaded = AVLGTree.load(file, KeyCodecs.INTEGER);
+    		assertTrue(loaded.isMultiset());
+    		assertEquals(196, loaded.getTotalCount());
+    		assertEquals(4, loaded.count(8));
+    		assertTrue(loaded.validate().isValid());
+    	} finally {
+    		Files.deleteIfExists(file);
+    	}
+    }
+
+    @Test
+    public void testCursorSurvivesRotationsAndDeletes() throws InvalidBalanceException, EmptyTreeException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	AVLGTree<Integer>.Cursor writer = tree.cursor();
+    	for (int i = 0; i < 1000; i += 2)
+    		writer.insert(i);
+    	AVLGTree<Integer>.Cursor reader = tree.cursor(500);
+    	for (int i = 1; i < 1000; i += 2)
+    		writer.insert(i); // plenty of rotations around reader
+    	assertEquals(Integer.valueOf(500), reader.get());
+    	assertEquals(Integer.valueOf(501), reader.next());
+    	assertEquals(Integer.valueOf(500), reader.prev());
+    	tree.delete(500);
+    	assertEquals(Integer.valueOf(501), reader.get());
+    	assertFalse(reader.seek(1000));
+    	assertNull(reader.get());
+    	assertTrue(reader.seek(250));
+    	for (int i = 0; i < 10; i++)
+    		assertEquals(Integer.valueOf(250 + i), reader.delete());
+    	assertEquals(Integer.valueOf(260), reader.get());
+    	assertEquals(989, tree.getCount());
+    	assertTrue(tree.validate().isValid());
+    }
+
+    @Test
+    public void testRangeAggregates() throws InvalidBalanceException, EmptyTreeException {
+    	LongAugmentedAVLGTree<Integer> volume = new LongAugmentedAVLGTree<Integer>(2, LongMonoid.SUM);
+    	AugmentedAVLGTree<Integer, String> trail = new AugmentedAVLGTree<Integer, String>(1,
+    			Monoid.of("", String::concat));
+    	for (int i = 1; i <= 100; i++) {
+    		volume.put(i, i);
+    		trail.put(i, i % 10 == 0 ? Integer.toString(i / 10) : null);
+    	}
+    	assertEquals(5050, volume.aggregate());
+    	assertEquals(55, volume.aggregate(1, 10));
+    	assertEquals(0, volume.aggregate(101, null));
+    	volume.put(5, 1000);
+    	volume.delete(10);
+    	assertEquals(55 - 5 + 1000 - 10, volume.aggregate(null, 10));
+    	assertEquals("345", trail.aggregate(25, 55)); // combined in key order
+    	trail.delete(40);
+    	assertEquals("35", trail.aggregate(25, 55));
+    	assertTrue(volume.validate().isValid());
+    }
+
+    @Test
+    public void testIntervalQueries() throws InvalidBalanceException, EmptyTreeException {
+    	AVLGIntervalTree<Integer> tree = new AVLGIntervalTree<Integer>(2);
+    	for (int i = 0; i < 100; i++)
+    		tree.insert(i * 10, i * 10 + 5); // [0, 5], [10, 15], ...
+    	tree.insert(0, 1000);
+    	assertEquals(Arrays.asList(new Interval<Integer>(0, 1000), new Interval<Integer>(420, 425)), tree.stab(423));
+    	assertEquals(1, tree.stab(427).size());
+    	assertEquals(4, tree.overlapping(503, 525).size()); // [0, 1000], [500, 505], [510, 515], [520, 525]
+    	tree.delete(new Interval<Integer>(0, 1000));
+    	int[] visited = new int[1];
+    	assertEquals(0, tree.stab(427, interval -> visited[0]++));
+    	assertEquals(0, visited[0]);
+    	assertEquals(3, tree.overlapping(503, 525, interval -> visited[0]++));
+    	assertEquals(3, visited[0]);
+    	assertTrue(tree.validate().isValid());
+    }
+
+    @Test
+    public void testSearchFilterNeverHidesKeys() throws InvalidBalanceException, EmptyTreeException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	tree.enableSearchFilter(0.01);
+    	for (int i = 0; i < 5000; i += 2)
+    		tree.insert(i); // outgrows the initial filter
+    	for (int i = 0; i < 5000; i += 4)
+    		tree.delete(i);
+    	for (int i = 0; i < 5000; i++)
+    		assertEquals(i % 4 == 2, tree.contains(i));
+    	assertTrue(tree.getFilterHits() > 3000);
+    	assertTrue(tree.getFilterFalsePositives() < 500);
+    	tree.clear();
+    	assertFalse(tree.contains(2));
+    	tree.insert(2);
+    	assertEquals(Integer.valueOf(2), tree.search(2));
+    }
+
+    @Test
+    public void testNodePoolReusesNodes() throws InvalidBalanceException, EmptyTreeException {
+    	AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    	tree.enableNodePool(100);
+    	for (int i = 0; i < 100; i++)
+    		tree.insert(i);
+    	assertEquals(0, tree.getPoolHitRate(), 0);
+    	for (int i = 100; i < 300; i++) {
+    		tree.delete(i - 100);
+    		tree.insert(i);
+    	}
+    	assertEquals(200.0 / 300, tree.getPoolHitRate(), 1e-9);
+    	tree.clear();
+    	for (int i = 0; i < 100; i++)
+    		tree.insert(-i);
+    	assertEquals(300.0 / 400, tree.getPoolHitRate(), 1e-9);
+    	assertEquals(100, tree.getCount());
+    	assertTrue(tree.validate().isValid());
+    }
+
+    @Test
+    public void testRecordedTraceReplaysIdentically() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	Path file = Files.createTempFile("trace", ".avlg");
+    	try {
+    		AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    		Random random = new Random(38);
+    		try (AVLGTreeRecorder<Integer> recorder = AVLGTreeRecorder.open(file, KeyCodecs.INTEGER)) {
+    			tree.setRecorder(recorder);
+    			for (int i = 0; i < 5000; i++) {
+    				int key = random.nextInt(2000);
+    				if (random.nextBoolean())
+    					tree.insert(key);
+    				else if (!tree.isEmpty())
+    					tree.delete(key);
+    				tree.contains(key);
+    			}
+    			tree.setRecorder(null);
+    			tree.contains(-1);
+    			assertTrue(recorder.getRecordCount() >= 5000);
+    		}
+    		AVLGTreeReplay<Integer> replay = AVLGTreeReplay.load(file, KeyCodecs.INTEGER);
+    		AVLGTreeReplay.Result result = replay.run(1);
+    		assertEquals(tree.getCount(), result.getCount());
+    		assertEquals(tree.getHeight(), result.getHeight());
+    		assertEquals(tree.getRotationCount(), result.getRotationCount());
+    		assertTrue(result.percentile(50) <= result.percentile(99));
+    		AVLGTreeReplay.Result loose = replay.run(3);
+    		assertEquals(tree.getCount(), loose.getCount());
+    		assertTrue(loose.getRotationCount() < result.getRotationCount());
+    	} finally {
+    		Files.deleteIfExists(file);
+    	}
+    }
+
+    @Test
+    public void testMultisetTraceReplaysAsMultiset() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	Path file = Files.createTempFile("trace", ".avlg");
+    	try {
+    		AVLGTree<Integer> tree = new AVLGTree<Integer>(2, true);
+    		try (AVLGTreeRecorder<Integer> recorder = AVLGTreeRecorder.open(file, KeyCodecs.INTEGER, true)) {
+    			try {
+    				new AVLGTree<Integer>(2).setRecorder(recorder);
+    				fail("A multiset trace should not be recorded from a set.");
+    			} catch (IllegalArgumentException e) {
+    				// Expected.
+    			}
+    			tree.setRecorder(recorder);
+    			for (int i = 0; i < 300; i++)
+    				tree.insert(i % 50);
+    			for (int i = 0; i < 50; i++)
+    				tree.delete(i);
+    		}
+    		AVLGTreeReplay<Integer> replay = AVLGTreeReplay.load(file, KeyCodecs.INTEGER);
+    		assertTrue(replay.isMultiset());
+    		// Replayed against a set, the deletions would leave the tree empty.
+    		assertEquals(50, tree.getCount());
+    		assertEquals(tree.getCount(), replay.run(2).getCount());
+    	} finally {
+    		Files.deleteIfExists(file);
+    	}
+    }
+
+    @Test
+    public void testTraceSkipsRejectedKey() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	Path file = Files.createTempFile("trace", ".avlg");
+    	try {
+    		AVLGTree<Integer> tree = new AVLGTree<Integer>(1);
+    		try (AVLGTreeRecorder<Integer> recorder = AVLGTreeRecorder.open(file, KeyCodecs.INTEGER)) {
+    			tree.setRecorder(recorder);
+    			tree.insert(5);
+    			try {
+    				tree.insert(null);
+    				fail("The tree should have rejected a null key.");
+    			} catch (NullPointerException e) {
+    				// The trace must not keep a record without its key.
+    			}
+    			tree.insert(300);
+    			tree.insert(7);
+    			assertEquals(3, recorder.getRecordCount());
+    		}
+    		AVLGTreeReplay<Integer> replay = AVLGTreeReplay.load(file, KeyCodecs.INTEGER);
+    		assertEquals(3, replay.getOperationCount());
+    		assertEquals(tree.getCount(), replay.run(1).getCount());
+    	} finally {
+    		Files.deleteIfExists(file);
+    	}
+    }
+
+    @Test
+    public void testTieredTreeFlushesAndCompacts() throws InvalidBalanceException, IOException {
+    	Path dir = Files.createTempDirectory("avlg-lsm");
+    	try {
+    		TieredAVLGTree<Integer> tiered = TieredAVLGTree.open(dir, 1, KeyCodecs.INTEGER, 100);
+    		for (int i = 0; i < 2000; i++)
+    			tiered.insert(i);
+    		for (int i = 0; i < 2000; i += 2)
+    			tiered.delete(i);
+    		tiered.flush();
+    		assertEquals(0, tiered.getMemtableCount());
+    		assertTrue(tiered.getRunCount() > 0);
+    		assertFalse(tiered.contains(1000));
+    		assertEquals(Integer.valueOf(1001), tiered.search(1001));
+    		tiered.insert(1000);
+    		tiered.close();
+    		
+    		TieredAVLGTree<Integer> reopened = TieredAVLGTree.open(dir, 1, KeyCodecs.INTEGER, 100);
+    		reopened.compact();
+    		assertEquals(1, reopened.getRunCount());
+    		for (int i = -1; i <= 2000; i++)
+    			assertEquals("Key " + i, i == 1000 || (i > 0 && i < 2000 && i % 2 == 1), reopened.contains(i));
+    		reopened.close();
+    	} finally {
+    		deleteRecursively(dir);
+    	}
+    }
+
+    @Test
+    public void testTieredTreeSkipsOversizedMerges() throws InvalidBalanceException, IOException {
+    	Path dir = Files.createTempDirectory("avlg-lsm");
+    	try {
+    		TieredAVLGTree<Integer> first = TieredAVLGTree.open(dir, 1, KeyCodecs.INTEGER, 100);
+    		for (int i = 0; i < 100; i++)
+    			first.insert(i);
+    		first.flush();
+    		first.close();
+    		// Room for three runs of one memtable each, short of the four that make a tier.
+    		long maxRunBytes = 3 * Files.size(dir.resolve("run-0-0.avlr")) + 16;
+    		TieredAVLGTree<Integer> tiered = TieredAVLGTree.open(dir, 1, KeyCodecs.INTEGER, 100, maxRunBytes);
+    		for (int i = 100; i < 2000; i++)
+    			tiered.insert(i);
+    		for (int i = 0; i < 2000; i += 2)
+    			tiered.delete(i);
+    		tiered.flush();
+    		tiered.compact();
+    		assertTrue(tiered.getRunCount() > 1);
+    		try (Stream<Path> runs = Files.list(dir)) {
+    			for (Path run : runs.collect(Collectors.toList()))
+    				assertTrue(run.toString(), Files.size(run) <= maxRunBytes);
+    		}
+    		tiered.insert(0);
+    		for (int i = -1; i <= 2000; i++)
+    			assertEquals("Key " + i, i == 0 || (i > 0 && i < 2000 && i % 2 == 1), tiered.contains(i));
+    		tiered.close();
+    	} finally {
+    		deleteRecursively(dir);
+    	}
+    }
+
+    @Test
+    public void testTieredTreeRecoversInterruptedCompaction() throws InvalidBalanceException, IOException {
+    	Path dir = Files.createTempDirectory("avlg-lsm");
+    	try {
+    		TieredAVLGTree<Integer> tiered = TieredAVLGTree.open(dir, 1, KeyCodecs.INTEGER, 1000);
+    		for (int i = 0; i < 10; i++)
+    			tiered.insert(i);
+    		tiered.flush();
+    		tiered.delete(5);
+    		for (int i = 10; i < 20; i++)
+    			tiered.insert(i);
+    		tiered.flush();
+    		Path first = dir.resolve("run-0-0.avlr");
+    		Path second = dir.resolve("run-1-1.avlr");
+    		byte[] firstBytes = Files.readAllBytes(first);
+    		byte[] secondBytes = Files.readAllBytes(second);
+    		tiered.compact();
+    		tiered.close();
+    		// A crash after the merged run was renamed into place, but before its inputs were deleted,
+    		// and in the middle of writing the next flush.
+    		Files.write(first, firstBytes);
+    		Files.write(second, secondBytes);
+    		Path stray = dir.resolve("run-2-2.tmp");
+    		Files.write(stray, new byte[] { 1, 2, 3 });
+    		
+    		TieredAVLGTree<Integer> reopened = TieredAVLGTree.open(dir, 1, KeyCodecs.INTEGER, 1000);
+    		assertEquals(1, reopened.getRunCount());
+    		assertTrue(Files.exists(dir.resolve("run-0-1.avlr")));
+    		assertFalse(Files.exists(first));
+    		assertFalse(Files.exists(second));
+    		assertFalse(Files.exists(stray));
+    		for (int i = -1; i <= 20; i++)
+    			assertEquals("Key " + i, i >= 0 && i < 20 && i != 5, reopened.contains(i));
+    		reopened.insert(20);
+    		reopened.flush();
+    		assertTrue(Files.exists(dir.resolve("run-2-2.avlr")));
+    		reopened.close();
+    	} finally {
+    		deleteRecursively(dir);
+    	}
+    }
+
+    @Test
+    public void testByteKeysWithSharedPrefixes() throws InvalidBalanceException, EmptyTreeException, IOException {
+    	ByteKeyAVLGTree tree = new ByteKeyAVLGTree(2);
+    	List<ByteKey> keys = new ArrayList<>();
+    	for (int i = 0; i < 500; i++)
+    		keys.add(ByteKey.of("https://example.com/projects/" + (i % 7) + "/items/" + Integer.toHexString(i * 7919)));
+    	// Short keys, and keys that only differ past a shorter one in zero bytes, hit the padding of the cached bytes.
+    	for (byte[] bytes : new byte[][] { {}, { 'a' }, { 'a', 0 }, { 'a', 0, 0, 1 }, { 'a', 0, 0, 0, 0, 0, 0, 0, 0 },
+    			{ (byte) 0xFF }, { 'a', (byte) 0x80 } })
+    		keys.add(ByteKey.of(bytes));
+    	Collections.shuffle(keys, new Random(40));
+    	for (ByteKey key : keys)
+    		tree.insert(key);
+    	Collections.sort(keys);
+    	assertEquals(keys.size(), tree.getCount());
+    	for (ByteKey key : keys)
+    		assertTrue(key.toString(), tree.contains(ByteKey.of(key.toByteArray())));
+    	assertFalse(tree.contains(ByteKey.of(new byte[] { 'a', 0, 0 })));
+    	assertFalse(tree.contains(ByteKey.of("https://example.com/projects/")));
+    	assertEquals(keys.get(0), tree.delete(ByteKey.of(new byte[0])));
+    	keys.remove(0);
+    	List<ByteKey> inOrder = new ArrayList<>();
+    	for (ByteKey key : tree)
+    		inOrder.add(key);
+    	assertEquals(keys, inOrder);
+    	assertTrue(tree.validate().isValid());
+    	
+    	Path file = Files.createTempFile("bytes", ".avlg");
+    	try {
+    		tree.save(file, KeyCodecs.BYTES);
+    		AVLGTree<ByteKey> loaded = AVLGTree.load(file, KeyCodecs.BYTES);
+    		List<ByteKey> reloaded = new ArrayList<>();
+    		for (ByteKey key : loaded)
+    			reloaded.add(key);
+    		assertEquals(keys, reloaded);
+    	} finally {
+    		Files.deleteIfExists(file);
+    	}
     }
     
     
@@ -0,0 +1,925 @@
+package avlg;
+
+import avlg.StorageIO.ByteSink;
+import avlg.exceptions.EmptyTreeException;
+import avlg.exceptions.InvalidBalanceException;
+import avlg.exceptions.TreeFormatException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>{@link TieredAVLGTree} holds more keys than fit on the heap, in the manner of a log-structured merge
+ * tree. Updates go to an in-memory <em>memtable</em>: one {@link AVLGTree} of keys inserted and one of
+ * <em>tombstones</em>, keys deleted. Once the memtable holds {@code memtableLimit} keys, it is frozen and a
+ * background thread writes it out, in key order, to an immutable <em>run</em> file, while a fresh memtable
+ * takes new updates. At most one memtable is frozen at a time; writers that fill a second one wait for the
+ * first to be written, so the heap never holds more than twice {@code memtableLimit} keys.</p>
+ *
+ * <p>A run stores its keys in blocks of 64, {@link KeyCodec}-encoded against the previous key of the same
+ * block, and ends with a sparse index of the first key of every block. The index is
+ * all that is kept on the heap. Runs are memory-mapped, so a lookup binary-searches the index and decodes a
+ * single block straight out of the page cache.</p>
+ *
+ * <p>Lookups check the memtable, then the frozen memtable, then runs from newest to oldest, and stop at the
+ * first one that holds the key or a tombstone for it. Deletes are blind: they never look the key up, but
+ * record a tombstone that hides older copies. A second background thread merges runs, size-tiered: whenever
+ * four runs within a factor of two in size sit next to each other, they are merged into one, and tombstones are
+ * dropped once they reach the oldest run. Each key is thus rewritten about log<sub>4</sub>(n /
+ * memtableLimit) times, and the number of runs a lookup may visit grows only logarithmically.</p>
+ *
+ * <p>Runs are named {@code run-LO-HI.avlr}, after the range of flushes they cover, and are made durable before
+ * they are used, so a crash never loses or corrupts a run. The memtable itself is not logged: updates are on
+ * disk once {@link #flush()} or {@link #close()} returns. All methods are thread-safe, and lookups in runs are
+ * made without holding any lock.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTree
+ * @see DurableAVLGTree
+ */
+public class TieredAVLGTree<T extends Comparable<T>> implements AutoCloseable {
+
+	private static final int RUN_MAGIC = 0x41564C52; // "AVLR"
+	private static final int RUN_VERSION = 1;
+	private static final int RUN_HEADER_SIZE = 6;
+	private static final int RUN_FOOTER_SIZE = 8;
+	private static final int BLOCK_ENTRIES = 64;
+	private static final int RUNS_PER_TIER = 4;
+	private static final int SIZE_RATIO = 2;
+	private static final Object TOMBSTONE = new Object();
+
+	/* Run:
+	 * One immutable, memory-mapped run file
+	 *
+	 * Other notes:
+	 * Layout: magic, version, codec id; blocks of BLOCK_ENTRIES entries, each a flag byte (1 for a tombstone)
+	 * followed by the key, encoded against the previous key of the same block; the index, with the block and
+	 * entry counts and, per block, its first key and the delta from the previous block's offset; and a footer
+	 * holding the index offset and the magic again. The mapping outlives the file, so a run that compaction
+	 * has deleted can still be read by lookups that started before.
+	 */
+	private static final class Run<T extends Comparable<T>> {
+		private final Path file;
+		private final long lo;
+		private final long hi;
+		private final KeyCodec<T> codec;
+		private final ByteBuffer data;
+		private final int indexOffset;
+		private final long entries;
+		private final Object[] firstKeys;
+		private final int[] offsets;
+
+		private Run(Path file, long lo, long hi, KeyCodec<T> codec) throws IOException {
+			this.file = file;
+			this.lo = lo;
+			this.hi = hi;
+			this.codec = codec;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				long size = channel.size();
+				if (size < RUN_HEADER_SIZE + RUN_FOOTER_SIZE || size > Integer.MAX_VALUE)
+					throw new TreeFormatException(file + " is not a run.");
+				this.data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			int size = data.capacity();
+			if (data.getInt(0) != RUN_MAGIC || data.getInt(size - 4) != RUN_MAGIC)
+				throw new TreeFormatException(file + " is not a run.");
+			if (data.get(4) != RUN_VERSION)
+				throw new TreeFormatException("Unsupported run version " + data.get(4) + " in " + file + ".");
+			if ((data.get(5) & 0xFF) != codec.id())
+				throw new TreeFormatException(file + " was written with codec " + (data.get(5) & 0xFF) + ", not "
+						+ codec.id() + ".");
+			this.indexOffset = data.getInt(size - RUN_FOOTER_SIZE);
+			if (indexOffset < RUN_HEADER_SIZE || indexOffset > size - RUN_FOOTER_SIZE)
+				throw new TreeFormatException("Corrupt index in " + file + ".");
+			ChannelInput in = new ChannelInput(slice(indexOffset, size - RUN_FOOTER_SIZE));
+			long blocks = in.readVarLong();
+			this.entries = in.readVarLong();
+			if (blocks != (entries + BLOCK_ENTRIES - 1) / BLOCK_ENTRIES || blocks > indexOffset)
+				throw new TreeFormatException("Corrupt index in " + file + ".");
+			this.firstKeys = new Object[(int) blocks];
+			this.offsets = new int[(int) blocks];
+			T previous = null;
+			long offset = RUN_HEADER_SIZE;
+			for (int i = 0; i < blocks; i++) {
+				previous = codec.decode(previous, in);
+				offset += in.readVarLong();
+				if (offset > indexOffset)
+					throw new TreeFormatException("Corrupt index in " + file + ".");
+				firstKeys[i] = previous;
+				offsets[i] = (int) offset;
+			}
+		}
+
+		private ByteBuffer slice(int from, int to) {
+			ByteBuffer view = data.duplicate();
+			view.limit(to).position(from);
+			return view;
+		}
+
+		private ByteBuffer block(int i) {
+			return slice(offsets[i], i + 1 < offsets.length ? offsets[i + 1] : indexOffset);
+		}
+
+		/* lookup(T key):
+		 * Finds key in the run
+		 *
+		 * Other notes:
+		 * Returns the stored key, TOMBSTONE if the run holds a tombstone for key, or null if it holds neither.
+		 * Only the one block that may hold key is decoded.
+		 */
+		@SuppressWarnings("unchecked")
+		private Object lookup(T key) throws IOException {
+			int low = 0;
+			int high = firstKeys.length - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (key.compareTo((T) firstKeys[mid]) < 0)
+					high = mid - 1;
+				else
+					low = mid + 1;
+			}
+			if (high < 0)
+				return null;
+			ChannelInput in = new ChannelInput(block(high));
+			long n = Math.min(BLOCK_ENTRIES, entries - (long) high * BLOCK_ENTRIES);
+			T previous = null;
+			for (int i = 0; i < n; i++) {
+				boolean tombstone = in.readByte() != 0;
+				T stored = codec.decode(previous, in);
+				int c = key.compareTo(stored);
+				if (c == 0)
+					return tombstone ? TOMBSTONE : stored;
+				if (c < 0)
+					return null;
+				previous = stored;
+			}
+			return null;
+		}
+	}
+
+	/* RunReader:
+	 * Sequential reader over every entry of a run, for merges
+	 *
+	 * Other notes:
+	 * age orders readers holding the same key: the newest run, with the highest age, wins.
+	 */
+	private static final class RunReader<T extends Comparable<T>> {
+		private final Run<T> run;
+		private final int age;
+		private final ChannelInput in;
+		private long next;
+		private T key;
+		private boolean tombstone;
+
+		private RunReader(Run<T> run, int age) {
+			this.run = run;
+			this.age = age;
+			this.in = new ChannelInput(run.slice(RUN_HEADER_SIZE, run.indexOffset));
+		}
+
+		private boolean advance() throws IOException {
+			if (next == run.entries)
+				return false;
+			if (next % BLOCK_ENTRIES == 0)
+				key = null;
+			tombstone = in.readByte() != 0;
+			key = run.codec.decode(key, in);
+			next++;
+			return true;
+		}
+	}
+
+	/* RunTooLargeException:
+	 * Thrown by RunWriter when a run would outgrow maxRunBytes
+	 *
+	 * Other notes:
+	 * A merge that hits it is given up, leaving its inputs in place, rather than failing the tree.
+	 */
+	private static final class RunTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		private RunTooLargeException(String message) {
+			super(message);
+		}
+	}
+
+	/* RunWriter:
+	 * Writes sorted entries to a temporary file, and turns it into a run once finished
+	 *
+	 * Other notes:
+	 * Entries must be added in strictly ascending key order. Runs are limited to maxRunBytes, at most 2 GiB,
+	 * the most a single mapping can hold.
+	 */
+	private final class RunWriter {
+		private final Path tmp;
+		private final long lo;
+		private final long hi;
+		private final FileChannel channel;
+		private final ChannelOutput out;
+		private final ByteSink block = new ByteSink();
+		private final ChannelOutput blockOut = new ChannelOutput(block, 256);
+		private final List<T> firstKeys = new ArrayList<>();
+		private final List<Long> offsets = new ArrayList<>();
+		private final long limit = Math.min(maxRunBytes, Integer.MAX_VALUE);
+		private long offset = RUN_HEADER_SIZE;
+		private long entries;
+		private T previous;
+
+		private RunWriter(long lo, long hi) throws IOException {
+			this.lo = lo;
+			this.hi = hi;
+			this.tmp = directory.resolve("run-" + lo + "-" + hi + ".tmp");
+			this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			this.out = new ChannelOutput(channel);
+			out.writeInt(RUN_MAGIC);
+			out.writeByte(RUN_VERSION);
+			out.writeByte(codec.id());
+		}
+
+		private void add(T key, boolean tombstone) throws IOException {
+			if (entries % BLOCK_ENTRIES == 0) {
+				endBlock();
+				firstKeys.add(key);
+				offsets.add(offset);
+				previous = null;
+			}
+			blockOut.writeByte(tombstone ? 1 : 0);
+			codec.encode(key, previous, blockOut);
+			previous = key;
+			entries++;
+		}
+
+		private void endBlock() throws IOException {
+			blockOut.flush();
+			out.writeBytes(block.bytes.array(), 0, block.bytes.position());
+			offset += block.bytes.position();
+			block.bytes.clear();
+			if (offset + RUN_FOOTER_SIZE > limit)
+				throw new RunTooLargeException("Run " + tmp + " would exceed " + limit + " bytes.");
+		}
+
+		/* finish():
+		 * Writes the index and footer, makes the run durable under its final name and maps it
+		 */
+		private Run<T> finish() throws IOException {
+			endBlock();
+			long indexOffset = offset;
+			blockOut.writeVarLong(firstKeys.size());
+			blockOut.writeVarLong(entries);
+			T previousKey = null;
+			long previousOffset = RUN_HEADER_SIZE;
+			for (int i = 0; i < firstKeys.size(); i++) {
+				codec.encode(firstKeys.get(i), previousKey, blockOut);
+				blockOut.writeVarLong(offsets.get(i) - previousOffset);
+				previousKey = firstKeys.get(i);
+				previousOffset = offsets.get(i);
+			}
+			endBlock();
+			out.writeInt((int) indexOffset);
+			out.writeInt(RUN_MAGIC);
+			out.flush();
+			channel.force(true);
+			channel.close();
+			Path file = runFile(directory, lo, hi);
+			Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+			StorageIO.forceDirectory(directory);
+			return new Run<>(file, lo, hi, codec);
+		}
+
+		private void abort() {
+			try {
+				channel.close();
+				Files.deleteIfExists(tmp);
+			} catch (IOException e) {
+				// Left for open() to delete, as a file that is not a finished run.
+			}
+		}
+	}
+
+	private final Path directory;
+	private final int maxImbalance;
+	private final KeyCodec<T> codec;
+	private final int memtableLimit;
+	private final ExecutorService flusher;
+	private final ExecutorService compactor;
+	private final long maxRunBytes;
+
+	// Guarded by this
+	private AVLGTree<T> live;
+	private AVLGTree<T> tombstones;
+	private AVLGTree<T> frozenLive;
+	private AVLGTree<T> frozenTombstones;
+	private List<Run<T>> runs; // oldest first; replaced, never modified, so it can be read without the lock
+	private long nextFlush;
+	private boolean compactionScheduled;
+	private long mergeLimit = Long.MAX_VALUE; // below the input size of every merge that outgrew maxRunBytes
+	private IOException failure;
+	private boolean closed;
+
+	private TieredAVLGTree(Path directory, int maxImbalance, KeyCodec<T> codec, int memtableLimit,
+			long maxRunBytes, List<Run<T>> runs, long nextFlush) {
+		this.directory = directory;
+		this.maxImbalance = maxImbalance;
+		this.codec = codec;
+		this.memtableLimit = memtableLimit;
+		this.maxRunBytes = maxRunBytes;
+		this.runs = runs;
+		this.nextFlush = nextFlush;
+		this.live = newMemtable();
+		this.tombstones = newMemtable();
+		this.flusher = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "avlg-lsm-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		this.compactor = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "avlg-lsm-compactor");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * <p>Opens the tiered tree stored in directory, creating it if needed. Leftovers of a flush or compaction
+	 * interrupted by a crash are deleted.</p>
+	 * @param directory Where the runs live.
+	 * @param maxImbalance The maximum imbalance of the memtable.
+	 * @param codec The codec used for keys in runs.
+	 * @param memtableLimit How many keys and tombstones the memtable holds before it is flushed.
+	 * @param <T> The type of key stored in the tree.
+	 * @return The tree.
+	 * @throws InvalidBalanceException if maxImbalance is smaller than 1.
+	 * @throws IOException if the directory cannot be read or written, or holds a corrupt run.
+	 */
+	public static <T extends Comparable<T>> TieredAVLGTree<T> open(Path directory, int maxImbalance,
+			KeyCodec<T> codec, int memtableLimit) throws InvalidBalanceException, IOException {
+		return open(directory, maxImbalance, codec, memtableLimit, Integer.MAX_VALUE);
+	}
+
+	/* open(Path directory, int maxImbalance, KeyCodec<T> codec, int memtableLimit, long maxRunBytes):
+	 * Opens the tiered tree with runs limited to maxRunBytes rather than 2 GiB
+	 *
+	 * Other notes:
+	 * Lets tests force merges past the limit without writing gigabytes.
+	 */
+	static <T extends Comparable<T>> TieredAVLGTree<T> open(Path directory, int maxImbalance, KeyCodec<T> codec,
+			int memtableLimit, long maxRunBytes) throws InvalidBalanceException, IOException {
+		if (memtableLimit < 1)
+			throw new IllegalArgumentException("Memtable must hold at least one key.");
+		if (maxImbalance < 1)
+			throw new InvalidBalanceException("Max imbalance must be greater than or equal to 1.");
+		KeyCodecs.idOf(codec);
+		Files.createDirectories(directory);
+		List<long[]> spans = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "run-*")) {
+			for (Path file : files) {
+				long[] span = spanOf(file);
+				if (span == null)
+					Files.delete(file); // a temporary file, or a run that was never finished
+				else
+					spans.add(span);
+			}
+		}
+		// Compaction inputs sort before the run that replaced them, which ends with the newest of them.
+		spans.sort(Comparator.comparingLong((long[] span) -> span[1]).thenComparingLong(span -> -span[0]));
+		List<long[]> live = new ArrayList<>();
+		for (long[] span : spans) {
+			// Inputs of a compaction that was done but not yet cleaned up; its output covers them.
+			while (!live.isEmpty() && live.get(live.size() - 1)[0] >= span[0]) {
+				long[] stale = live.remove(live.size() - 1);
+				Files.delete(runFile(directory, stale[0], stale[1]));
+			}
+			live.add(span);
+		}
+		List<Run<T>> runs = new ArrayList<>();
+		long nextFlush = 0;
+		for (long[] span : live) {
+			runs.add(new Run<>(runFile(directory, span[0], span[1]), span[0], span[1], codec));
+			nextFlush = span[1] + 1;
+		}
+		return new TieredAVLGTree<>(directory, maxImbalance, codec, memtableLimit, maxRunBytes,
+				Collections.unmodifiableList(runs), nextFlush);
+	}
+
+	private static Path runFile(Path directory, long lo, long hi) {
+		return directory.resolve("run-" + lo + "-" + hi + ".avlr");
+	}
+
+	/* spanOf(Path file):
+	 * Parses the range of flushes a run covers out of its name
+	 *
+	 * Other notes:
+	 * Returns null if file is not a finished run.
+	 */
+	private static long[] spanOf(Path file) {
+		String name = file.getFileName().toString();
+		if (!name.endsWith(".avlr"))
+			return null;
+		try {
+			int dash = name.indexOf('-', 4);
+			long lo = Long.parseLong(name.substring(4, dash));
+			long hi = Long.parseLong(name.substring(dash + 1, name.length() - 5));
+			return lo <= hi && lo >= 0 ? new long[] { lo, hi } : null;
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private AVLGTree<T> newMemtable() {
+		try {
+			return new AVLGTree<>(maxImbalance);
+		} catch (InvalidBalanceException e) {
+			throw new IllegalStateException(e); // ruled out by open()
+		}
+	}
+
+	/* find(AVLGTree<T> tree, T key):
+	 * Searches a memtable without tripping over an empty one
+	 */
+	private static <T extends Comparable<T>> T find(AVLGTree<T> tree, T key) {
+		if (tree == null || tree.isEmpty())
+			return null;
+		try {
+			return tree.search(key);
+		} catch (EmptyTreeException e) {
+			return null; // ruled out above
+		}
+	}
+
+	private static <T extends Comparable<T>> void remove(AVLGTree<T> tree, T key) {
+		if (tree.isEmpty())
+			return;
+		try {
+			tree.delete(key);
+		} catch (EmptyTreeException e) {
+			// ruled out above
+		}
+	}
+
+	/* checkWritable():
+	 * Refuses updates once the tree is closed or a background write has failed
+	 *
+	 * Other notes:
+	 * Must hold the monitor.
+	 */
+	private void checkWritable() {
+		if (closed)
+			throw new IllegalStateException("Tree has been closed.");
+		if (failure != null)
+			throw new IllegalStateException("Flush or compaction has failed.", failure);
+	}
+
+	/* awaitFlushed():
+	 * Waits until no memtable is frozen, or a flush has failed
+	 *
+	 * Other notes:
+	 * Must hold the monitor. If interrupted, keeps waiting and restores the interrupt status on return.
+	 */
+	private void awaitFlushed() {
+		boolean interrupted = false;
+		while (frozenLive != null && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/* freeze():
+	 * Hands the memtable to the flusher and starts an empty one
+	 *
+	 * Other notes:
+	 * Must hold the monitor, with no memtable frozen.
+	 */
+	private void freeze() {
+		frozenLive = live;
+		frozenTombstones = tombstones;
+		live = newMemtable();
+		tombstones = newMemtable();
+		long flush = nextFlush++;
+		flusher.execute(() -> flushFrozen(flush));
+	}
+
+	private void freezeIfFull() {
+		if (live.getCount() + tombstones.getCount() < memtableLimit)
+			return;
+		awaitFlushed();
+		checkWritable();
+		freeze();
+	}
+
+	/* flushFrozen(long flush):
+	 * Writes the frozen memtable out as run flush-flush, then publishes it
+	 *
+	 * Other notes:
+	 * Runs on the flusher thread. The frozen trees are never modified, so they are read without the lock.
+	 */
+	private void flushFrozen(long flush) {
+		AVLGTree<T> keys;
+		AVLGTree<T> deleted;
+		synchronized (this) {
+			keys = frozenLive;
+			deleted = frozenTombstones;
+		}
+		Run<T> run = null;
+		IOException error = null;
+		RunWriter writer = null;
+		try {
+			writer = new RunWriter(flush, flush);
+			Iterator<T> a = keys.iterator();
+			Iterator<T> b = deleted.iterator();
+			T x = a.hasNext() ? a.next() : null;
+			T y = b.hasNext() ? b.next() : null;
+			while (x != null || y != null) {
+				if (y == null || (x != null && x.compareTo(y) < 0)) {
+					writer.add(x, false);
+					x = a.hasNext() ? a.next() : null;
+				} else {
+					writer.add(y, true);
+					y = b.hasNext() ? b.next() : null;
+				}
+			}
+			run = writer.finish();
+		} catch (IOException e) {
+			error = e;
+			if (writer != null)
+				writer.abort();
+		}
+		synchronized (this) {
+			if (run != null) {
+				List<Run<T>> next = new ArrayList<>(runs);
+				next.add(run);
+				runs = Collections.unmodifiableList(next);
+				frozenLive = null;
+				frozenTombstones = null;
+				if (!compactionScheduled) {
+					compactionScheduled = true;
+					compactor.execute(this::compactTiers);
+				}
+			} else if (failure == null) {
+				failure = error; // the frozen memtable stays readable
+			}
+			notifyAll();
+		}
+	}
+
+	/* weightOf(Run<T> run):
+	 * The size compaction sees for run; runs smaller than a full memtable count as one
+	 */
+	private long weightOf(Run<T> run) {
+		return Math.max(run.entries, memtableLimit);
+	}
+
+	/* mergeBudget():
+	 * The most bytes the inputs of a merge may add up to
+	 *
+	 * Other notes:
+	 * Must hold the monitor. A merge writes about as many bytes as it reads, so merges past the budget are
+	 * skipped rather than attempted; those whose output outgrows maxRunBytes anyway lower it further.
+	 */
+	private long mergeBudget() {
+		return Math.min(maxRunBytes, mergeLimit);
+	}
+
+	private static long bytesOf(List<? extends Run<?>> runs) {
+		long bytes = 0;
+		for (Run<?> run : runs)
+			bytes += run.data.capacity();
+		return bytes;
+	}
+
+	/* compactTiers():
+	 * Merges runs of about the same size, for as long as RUNS_PER_TIER of them sit next to each other
+	 *
+	 * Other notes:
+	 * Runs on the compactor thread, which is the only one that ever replaces runs other than appending.
+	 * Runs are grouped from the newest down, while the largest run in a group is at most SIZE_RATIO times the
+	 * smallest. Sizes rather than fixed tiers are compared, so that runs of a key set that has stopped
+	 * growing, which merge into runs of the same size again, still end up merged together. A group also stops
+	 * growing where its runs would add up to more than mergeBudget(), so runs near the size limit are left
+	 * alone instead of failing the tree.
+	 */
+	private void compactTiers() {
+		while (true) {
+			int start = -1;
+			int end;
+			synchronized (this) {
+				compactionScheduled = false;
+				if (failure != null)
+					return;
+				long budget = mergeBudget();
+				for (end = runs.size(); end >= RUNS_PER_TIER; end--) {
+					long min = weightOf(runs.get(end - 1));
+					long max = min;
+					long bytes = runs.get(end - 1).data.capacity();
+					start = end - 1;
+					while (start > 0) {
+						long weight = weightOf(runs.get(start - 1));
+						if (Math.max(max, weight) > SIZE_RATIO * Math.min(min, weight))
+							break;
+						bytes += runs.get(start - 1).data.capacity();
+						if (bytes > budget)
+							break;
+						min = Math.min(min, weight);
+						max = Math.max(max, weight);
+						start--;
+					}
+					if (end - start >= RUNS_PER_TIER)
+						break;
+				}
+				if (end < RUNS_PER_TIER)
+					return;
+			}
+			merge(start, end);
+		}
+	}
+
+	/* merge(int start, int end):
+	 * Replaces runs start to end - 1 with a single run
+	 *
+	 * Parameters:
+	 * start - the oldest run to merge
+	 * end - one past the newest run to merge
+	 *
+	 * Other notes:
+	 * Runs on the compactor thread. Flushes only ever append, so the runs merged keep their positions while
+	 * the merge runs. When the oldest run is merged, nothing older is left for tombstones to hide, so they
+	 * are dropped. Inputs are deleted oldest first, so that a crash never deletes a tombstone before what it
+	 * hides. If the output would outgrow maxRunBytes, the merge is given up and its inputs stay as they are.
+	 */
+	private void merge(int start, int end) {
+		List<Run<T>> inputs;
+		synchronized (this) {
+			inputs = new ArrayList<>(runs.subList(start, end));
+		}
+		boolean dropTombstones = start == 0;
+		RunWriter writer = null;
+		try {
+			PriorityQueue<RunReader<T>> queue = new PriorityQueue<>(inputs.size(), (a, b) -> {
+				int c = a.key.compareTo(b.key);
+				return c != 0 ? c : Integer.compare(b.age, a.age);
+			});
+			for (int i = 0; i < inputs.size(); i++) {
+				RunReader<T> reader = new RunReader<>(inputs.get(i), i);
+				if (reader.advance())
+					queue.add(reader);
+			}
+			writer = new RunWriter(inputs.get(0).lo, inputs.get(inputs.size() - 1).hi);
+			while (!queue.isEmpty()) {
+				RunReader<T> newest = queue.poll();
+				T key = newest.key;
+				if (!newest.tombstone || !dropTombstones)
+					writer.add(key, newest.tombstone);
+				if (newest.advance())
+					queue.add(newest);
+				while (!queue.isEmpty() && queue.peek().key.compareTo(key) == 0) {
+					RunReader<T> older = queue.poll();
+					if (older.advance())
+						queue.add(older);
+				}
+			}
+			Run<T> output = writer.finish();
+			synchronized (this) {
+				List<Run<T>> next = new ArrayList<>(runs.size() - inputs.size() + 1);
+				next.addAll(runs.subList(0, start));
+				next.add(output);
+				next.addAll(runs.subList(end, runs.size()));
+				runs = Collections.unmodifiableList(next);
+			}
+			for (Run<T> input : inputs)
+				Files.deleteIfExists(input.file);
+		} catch (RunTooLargeException e) {
+			if (writer != null)
+				writer.abort();
+			synchronized (this) {
+				mergeLimit = Math.min(mergeLimit, bytesOf(inputs) - 1);
+			}
+		} catch (IOException e) {
+			if (writer != null)
+				writer.abort();
+			synchronized (this) {
+				if (failure == null)
+					failure = e;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Inserts key into the memtable, freezing it first if it is full.
+	 * @param key The key to insert.
+	 * @throws IllegalStateException if the tree has been closed, or a flush or compaction has failed.
+	 */
+	public synchronized void insert(T key) {
+		checkWritable();
+		freezeIfFull();
+		remove(tombstones, key);
+		live.insert(key);
+	}
+
+	/**
+	 * <p>Deletes key, without looking it up. Unless nothing older than the memtable exists, the deletion is
+	 * recorded as a tombstone, which hides any older copy of key until compaction drops them both.</p>
+	 * @param key The key to delete.
+	 * @throws IllegalStateException if the tree has been closed, or a flush or compaction has failed.
+	 */
+	public synchronized void delete(T key) {
+		checkWritable();
+		freezeIfFull();
+		remove(live, key);
+		if (frozenLive != null || !runs.isEmpty())
+			tombstones.insert(key);
+	}
+
+	/**
+	 * Searches the memtable, then the frozen memtable, then runs from newest to oldest.
+	 * @param key The key to search for.
+	 * @return The stored key equal to key, or {@code null} if it is not in the tree.
+	 * @throws IOException if a run is corrupt.
+	 * @throws IllegalStateException if the tree has been closed.
+	 */
+	@SuppressWarnings("unchecked")
+	public T search(T key) throws IOException {
+		List<Run<T>> snapshot;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Tree has been closed.");
+			T found = find(live, key);
+			if (found != null)
+				return found;
+			if (find(tombstones, key) != null)
+				return null;
+			found = find(frozenLive, key);
+			if (found != null)
+				return found;
+			if (find(frozenTombstones, key) != null)
+				return null;
+			snapshot = runs;
+		}
+		for (int i = snapshot.size() - 1; i >= 0; i--) {
+			Object found = snapshot.get(i).lookup(key);
+			if (found == TOMBSTONE)
+				return null;
+			if (found != null)
+				return (T) found;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key The key to search for.
+	 * @return {@code true} if key is in the tree, {@code false} otherwise.
+	 * @throws IOException if a run is corrupt.
+	 * @throws IllegalStateException if the tree has been closed.
+	 * @see #search(Comparable)
+	 */
+	public boolean contains(T key) throws IOException {
+		return search(key) != null;
+	}
+
+	/**
+	 * @return The number of keys and tombstones in the memtable.
+	 */
+	public synchronized int getMemtableCount() {
+		return live.getCount() + tombstones.getCount();
+	}
+
+	/**
+	 * @return The number of run files, which bounds how many a lookup may read.
+	 */
+	public synchronized int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * @return The maximum imbalance of the memtable.
+	 */
+	public int getMaxImbalance() {
+		return maxImbalance;
+	}
+
+	/**
+	 * <p>Writes the memtable out as a run, and waits until it is durable. Does nothing if the memtable is
+	 * empty.</p>
+	 * @throws IOException if the run cannot be written; the tree stops accepting updates from then on.
+	 * @throws IllegalStateException if the tree has been closed.
+	 */
+	public synchronized void flush() throws IOException {
+		if (closed)
+			throw new IllegalStateException("Tree has been closed.");
+		awaitFlushed();
+		if (failure == null && (!live.isEmpty() || !tombstones.isEmpty())) {
+			freeze();
+			awaitFlushed();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * <p>Merges every run into one, dropping every tombstone, and waits until it is done. Runs flushed while
+	 * the merge runs are left alone. If the runs together would outgrow the largest run that can be mapped,
+	 * only the newest runs that fit are merged. Lookups and updates go on meanwhile.</p>
+	 * @throws IOException if the merged run cannot be written; the tree stops accepting updates from then on.
+	 * @throws IllegalStateException if the tree has been closed.
+	 */
+	public void compact() throws IOException {
+		Future<?> done;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Tree has been closed.");
+			done = compactor.submit(() -> {
+				int start;
+				int end;
+				synchronized (this) {
+					end = failure == null ? runs.size() : 0;
+					long budget = mergeBudget();
+					long bytes = 0;
+					for (start = end; start > 0; start--) {
+						bytes += runs.get(start - 1).data.capacity();
+						if (bytes > budget)
+							break;
+					}
+				}
+				if (end - start > 1 || (end == 1 && start == 0))
+					merge(start, end);
+			});
+		}
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+		}
+	}
+
+	/**
+	 * <p>Flushes the memtable, waits for background compaction to finish and stops the background threads.
+	 * Every key inserted before the call is then on disk.</p>
+	 * @throws IOException if the final flush, or an earlier flush or compaction, has failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed)
+				return;
+			awaitFlushed();
+			if (failure == null && (!live.isEmpty() || !tombstones.isEmpty())) {
+				freeze();
+				awaitFlushed();
+			}
+			closed = true;
+		}
+		flusher.shutdown();
+		compactor.shutdown();
+		boolean interrupted = false;
+		for (ExecutorService executor : new ExecutorService[] { flusher, compactor }) {
+			while (true) {
+				try {
+					if (executor.awaitTermination(1, TimeUnit.DAYS))
+						break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		synchronized (this) {
+			if (failure != null)
+				throw failure;
+		}
+	}
+}
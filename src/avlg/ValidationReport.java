@@ -0,0 +1,130 @@
+package avlg;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>{@link ValidationReport} is what {@link AVLGTree#validate()} returns: how many nodes the tree has, how
+ * tall it really is, how many violations of each {@link Kind} were found, and the first few of them in
+ * post-order, children before their parents. A tree is valid iff no violation of any kind was found.</p>
+ *
+ * @param <T> The type of key stored in the tree.
+ * @see AVLGTree#validate()
+ * @see AVLGTree#validateParallel(java.util.concurrent.ForkJoinPool)
+ */
+public final class ValidationReport<T> {
+
+	/** The invariants checked by the validator. */
+	public enum Kind {
+		/** A key is not strictly between the bounds set by its ancestors. */
+		ORDER,
+		/** A node's subtrees differ in height by more than the maximum imbalance. */
+		BALANCE,
+		/** A node's cached height differs from the height of its subtree. */
+		HEIGHT,
+		/** The tree's element or occurrence count differs from what its nodes hold, or a node's count is off. */
+		SIZE,
+		/** A node's parent link does not point back at the node whose child it is. */
+		LINK
+	}
+
+	/**
+	 * One broken invariant, at one node.
+	 * @param <T> The type of key stored in the tree.
+	 */
+	public static final class Violation<T> {
+		private final Kind kind;
+		private final T key;
+		private final String message;
+
+		Violation(Kind kind, T key, String message) {
+			this.kind = kind;
+			this.key = key;
+			this.message = message;
+		}
+
+		/**
+		 * @return Which invariant is broken.
+		 */
+		public Kind getKind() {
+			return kind;
+		}
+
+		/**
+		 * @return The key of the offending node, or {@code null} for tree-wide violations.
+		 */
+		public T getKey() {
+			return key;
+		}
+
+		/**
+		 * @return A human-readable description.
+		 */
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return kind + ": " + message;
+		}
+	}
+
+	private final long nodeCount;
+	private final int height;
+	private final long[] counts;
+	private final List<Violation<T>> violations;
+
+	ValidationReport(long nodeCount, int height, long[] counts, List<Violation<T>> violations) {
+		this.nodeCount = nodeCount;
+		this.height = height;
+		this.counts = counts;
+		this.violations = Collections.unmodifiableList(violations);
+	}
+
+	/**
+	 * @return {@code true} if no invariant is broken anywhere in the tree, {@code false} otherwise.
+	 */
+	public boolean isValid() {
+		for (long count : counts) {
+			if (count != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param kind An invariant.
+	 * @return How many times kind is broken in the whole tree.
+	 */
+	public long getViolationCount(Kind kind) {
+		return counts[kind.ordinal()];
+	}
+
+	/**
+	 * @return The first violations found, in post-order of their nodes; tree-wide ones come last.
+	 */
+	public List<Violation<T>> getViolations() {
+		return violations;
+	}
+
+	/**
+	 * @return The number of nodes actually reachable from the root.
+	 */
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return The height of the tree as measured, regardless of cached heights.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public String toString() {
+		return (isValid() ? "valid" : "invalid") + " tree of " + nodeCount + " nodes, height " + height
+				+ (violations.isEmpty() ? "" : ", " + violations);
+	}
+}
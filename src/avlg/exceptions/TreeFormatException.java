@@ -0,0 +1,18 @@
+package avlg.exceptions;
+
+import java.io.IOException;
+
+import avlg.AVLGTree;
+
+/**
+ * <p>{@link TreeFormatException} is an {@link IOException} thrown when a stream handed to {@link AVLGTree#load}
+ * does not hold a well-formed AVL-G tree: the magic number or version is wrong, the stored key codec does not
+ * match the one supplied by the caller, or the keys are truncated or out of order.</p>
+ *
+ * @see AVLGTree
+ */
+public class TreeFormatException extends IOException {
+	public TreeFormatException(String msg) {
+		super(msg);
+	}
+}